@@ -0,0 +1,121 @@
+package Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects corrections that change more of a paragraph than a copyedit should. The
+ * check runs alongside placeholder validation, so a rejected response is asked for
+ * again and never reaches the word diff and the paragraph rebuild. It is a
+ * banded edit distance (Ukkonen): only the diagonals within the allowed number
+ * of edits are computed, so it costs O(k·n) and gives up as soon as no cell of
+ * a row can still finish within the limit.
+ *
+ * spellcheck.maxChangeRatio is the largest share of the paragraph's characters
+ * that may change, for example 0.3; the default 0 leaves the guard off. Short paragraphs
+ * are always allowed a few edits, so "teh" can still become "the".
+ */
+class ChangeRatioGuard {
+
+    private static final int MIN_ALLOWED_EDITS = 8;
+
+    private final double maxRatio;
+    private final AtomicLong rejected = new AtomicLong();
+
+    ChangeRatioGuard(double maxRatio) {
+        this.maxRatio = maxRatio;
+    }
+
+    static ChangeRatioGuard fromSystemProperties() {
+        return new ChangeRatioGuard(Double.parseDouble(System.getProperty("spellcheck.maxChangeRatio", "0")));
+    }
+
+    double getMaxRatio() {
+        return maxRatio;
+    }
+
+    /**
+     * Whether corrected is close enough to original; counts a rejection if not
+     */
+    boolean accept(String original, String corrected) {
+        if (maxRatio <= 0 || !exceeds(original, corrected, maxRatio)) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    static boolean exceeds(String original, String corrected, double maxRatio) {
+        int limit = Math.max(MIN_ALLOWED_EDITS, (int) (maxRatio * original.length()));
+        return boundedDistance(original, corrected, limit) > limit;
+    }
+
+    /**
+     * Levenshtein distance between a and b if it is at most limit, otherwise limit + 1
+     */
+    static int boundedDistance(CharSequence a, CharSequence b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) {
+            return limit + 1;
+        }
+
+        // A copyedit leaves most of the paragraph alone; only the middle needs the table
+        int start = 0;
+        while (start < a.length() && start < b.length() && a.charAt(start) == b.charAt(start)) {
+            start++;
+        }
+        int endA = a.length();
+        int endB = b.length();
+        while (endA > start && endB > start && a.charAt(endA - 1) == b.charAt(endB - 1)) {
+            endA--;
+            endB--;
+        }
+        int n = endA - start;
+        int m = endB - start;
+        if (n == 0 || m == 0) {
+            return Math.min(n + m, limit + 1);
+        }
+
+        int over = limit + 1;
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = Math.min(j, over);
+        }
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - limit);
+            int to = Math.min(m, i + limit);
+            current[from - 1] = from == 1 ? Math.min(i, over) : over;
+            // Lower bound on the final distance through any cell of this row
+            int rowMin = current[from - 1] + Math.abs((n - i) - (m - (from - 1)));
+            char c = a.charAt(start + i - 1);
+
+            for (int j = from; j <= to; j++) {
+                int cost = c == b.charAt(start + j - 1) ? 0 : 1;
+                int value = Math.min(previous[j - 1] + cost, Math.min(previous[j], current[j - 1]) + 1);
+                current[j] = Math.min(value, over);
+                rowMin = Math.min(rowMin, current[j] + Math.abs((n - i) - (m - j)));
+            }
+            if (rowMin > limit) {
+                return over;
+            }
+            // The next row's band reaches one cell further right; that cell is outside this one
+            if (to < m) {
+                current[to + 1] = over;
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m];
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    String summary() {
+        return "Change-ratio guard rejected " + rejected.get() + " corrections changing more than "
+                + Math.round(maxRatio * 100) + "% of a paragraph";
+    }
+}
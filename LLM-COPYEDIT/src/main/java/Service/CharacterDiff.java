@@ -0,0 +1,92 @@
+package Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Character-level diff for short words, used to show "recieve" → "receive" as the
+ * two letters that moved instead of a struck-through word next to a new one.
+ *
+ * The LCS table is computed bit-parallel (Allison-Dix, in Hyyrö's formulation):
+ * the first word fits in one long, so each character of the second word costs a
+ * handful of word operations. One vector per column is kept, which is enough to
+ * read any table cell back during the traceback.
+ */
+final class CharacterDiff {
+
+    static final int MAX_LENGTH = 64;
+
+    static final char KEEP = '=';
+    static final char REMOVE = '-';
+    static final char ADD = '+';
+
+    private CharacterDiff() {
+    }
+
+    /**
+     * Minimal edit script turning a into b, one of KEEP, REMOVE or ADD per step with
+     * removals before additions at each change. Returns null if a word is empty or
+     * longer than MAX_LENGTH, or if less than half of the longer word survives, in
+     * which case a whole-word change reads better.
+     */
+    static String editScript(String a, String b) {
+        int n = a.length();
+        int m = b.length();
+        if (n == 0 || m == 0 || n > MAX_LENGTH || m > MAX_LENGTH) {
+            return null;
+        }
+
+        Map<Character, Long> matches = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            matches.merge(a.charAt(i), 1L << i, (x, y) -> x | y);
+        }
+
+        // Zero bits of columns[j] in the low i bits count the LCS of a[0..i) and b[0..j)
+        long mask = lowBits(n);
+        long[] columns = new long[m + 1];
+        long v = mask;
+        columns[0] = v;
+        for (int j = 1; j <= m; j++) {
+            long u = v & matches.getOrDefault(b.charAt(j - 1), 0L);
+            v = ((v + u) | (v - u)) & mask;
+            columns[j] = v;
+        }
+
+        int common = lcs(columns, n, m);
+        if (2 * common < Math.max(n, m)) {
+            return null;
+        }
+
+        StringBuilder script = new StringBuilder(n + m - common);
+        int i = n;
+        int j = m;
+        while (i > 0 && j > 0) {
+            if (a.charAt(i - 1) == b.charAt(j - 1)) {
+                script.append(KEEP);
+                i--;
+                j--;
+            } else if (lcs(columns, i, j - 1) >= lcs(columns, i - 1, j)) {
+                script.append(ADD);
+                j--;
+            } else {
+                script.append(REMOVE);
+                i--;
+            }
+        }
+        while (j-- > 0) {
+            script.append(ADD);
+        }
+        while (i-- > 0) {
+            script.append(REMOVE);
+        }
+        return script.reverse().toString();
+    }
+
+    private static int lcs(long[] columns, int i, int j) {
+        return i - Long.bitCount(columns[j] & lowBits(i));
+    }
+
+    private static long lowBits(int count) {
+        return count == 64 ? -1L : (1L << count) - 1;
+    }
+}
@@ -0,0 +1,139 @@
+package Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops every worker from hammering a backend that is down. After enough
+ * consecutive failures the breaker opens and callers wait instead of sending;
+ * once the open period has passed, a single probe request goes through. If it
+ * succeeds the breaker closes and everyone resumes, if it fails the breaker opens
+ * again. A caller that has waited longer than maxWait gives up with a
+ * BackendUnavailableException.
+ */
+class CircuitBreaker {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long maxWaitNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probeInFlight;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    CircuitBreaker(int failureThreshold, long openMillis, long maxWaitMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Wait until a request may be sent
+     */
+    synchronized void acquire() throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (state == State.CLOSED) {
+                    return;
+                }
+                if (state == State.OPEN && now - openUntil >= 0) {
+                    state = State.HALF_OPEN;
+                }
+                if (state == State.HALF_OPEN && !probeInFlight) {
+                    probeInFlight = true;
+                    return;
+                }
+
+                long waited = now - start;
+                if (waited >= maxWaitNanos) {
+                    throw new BackendUnavailableException("Backend unavailable, circuit open for over "
+                            + TimeUnit.NANOSECONDS.toSeconds(maxWaitNanos) + " s", null);
+                }
+                long until = state == State.OPEN ? Math.min(openUntil - now, maxWaitNanos - waited) : maxWaitNanos - waited;
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, until));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the backend circuit was open");
+        } finally {
+            waitedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The backend answered, even if with an error that is not its fault
+     */
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            System.out.println("Backend recovered, circuit closed");
+            notifyAll();
+        }
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        boolean probeFailed = state == State.HALF_OPEN && probeInFlight;
+        probeInFlight = false;
+        if (probeFailed || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+            opened.incrementAndGet();
+            // A failed probe just extends the outage already reported
+            if (!probeFailed) {
+                System.err.println("Backend failing (" + consecutiveFailures + " consecutive errors), pausing dispatch for "
+                        + TimeUnit.NANOSECONDS.toSeconds(openNanos) + " s");
+            }
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Whether a failure, or one it was passed on from, means the backend is down
+     * rather than that a single call went wrong
+     */
+    static boolean isOutage(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BackendUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long getOpened() {
+        return opened.get();
+    }
+
+    long getWaitedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitedNanos.get());
+    }
+
+    /**
+     * The circuit stayed open for longer than a caller will wait, or was open when
+     * a call ran out of retries
+     */
+    static class BackendUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BackendUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package Service;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Progress counters and load controls for JMX (jconsole, VisualVM or any JMX client;
+ * start the JVM with the usual com.sun.management.jmxremote settings for remote access).
+ *
+ * Documents are counted by the scheduler and the workers, paragraphs by
+ * processParagraph on the worker thread that owns the document. Queued paragraphs
+ * are the ones still ahead in open documents plus the scheduler's estimate for
+ * documents not yet started, which is also what the ETA is based on.
+ *
+ * pause() holds every worker before its next paragraph and the scheduler before its
+ * next document. drain() lets the work in flight finish, lifting a pause, and
+ * dispatches nothing further; the remaining documents stay in the input folder for
+ * the next run. resume() lifts a pause.
+ */
+public class CopyeditMonitor implements CopyeditMonitorMBean {
+
+    // FLAGGED: left unchanged and highlighted after its backend calls failed
+    enum Outcome { DONE, SKIPPED, FLAGGED, FAILED }
+
+    private static final String OBJECT_NAME = "Service:type=CopyeditMonitor";
+    private static final long LATENCY_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LatencyRecorder llmLatencies;
+    private final SingleFlight<?, ?> inFlightRequests;
+    private final LatencyRecorder paragraphTimes = new LatencyRecorder();
+
+    private final AtomicInteger documentsQueued = new AtomicInteger();
+    private final DoubleAdder queuedCost = new DoubleAdder();
+    private final AtomicInteger documentsInFlight = new AtomicInteger();
+    private final AtomicLong documentsDone = new AtomicLong();
+    private final AtomicLong documentsFailed = new AtomicLong();
+    private final AtomicLong documentsDrained = new AtomicLong();
+
+    private final AtomicInteger paragraphsInFlight = new AtomicInteger();
+    private final AtomicLong paragraphsDone = new AtomicLong();
+    private final AtomicLong paragraphsSkipped = new AtomicLong();
+    private final AtomicLong paragraphsFailed = new AtomicLong();
+
+    private final Map<Thread, DocumentProgress> openDocuments = new ConcurrentHashMap<>();
+
+    private final Object gate = new Object();
+    private volatile boolean paused;
+    private volatile boolean draining;
+
+    // Percentiles are taken since windowStart, which is rolled forward once a minute
+    private LatencyRecorder.Snapshot windowStart;
+    private LatencyRecorder.Snapshot windowNext;
+    private long rolledAt = System.nanoTime();
+
+    CopyeditMonitor(LatencyRecorder llmLatencies, SingleFlight<?, ?> inFlightRequests) {
+        this.llmLatencies = llmLatencies;
+        this.inFlightRequests = inFlightRequests;
+        this.windowStart = llmLatencies.snapshot();
+        this.windowNext = windowStart;
+    }
+
+    /**
+     * Publish on the platform MBean server; a second registration is a no-op
+     */
+    void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    // --- Hooks for the scheduler and the workers ---
+
+    void documentQueued(double estimatedParagraphs) {
+        documentsQueued.incrementAndGet();
+        queuedCost.add(estimatedParagraphs);
+    }
+
+    /**
+     * Called by a worker that took a document off the queue. Blocks while paused;
+     * returns false if the queue is being drained and the document must be left alone.
+     */
+    boolean awaitDispatch(double estimatedParagraphs) throws InterruptedException {
+        documentsQueued.decrementAndGet();
+        queuedCost.add(-estimatedParagraphs);
+        awaitResumed();
+        if (draining) {
+            documentsDrained.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void documentStarted(String name) {
+        documentsInFlight.incrementAndGet();
+        openDocuments.put(Thread.currentThread(), new DocumentProgress(name));
+    }
+
+    /**
+     * Number of paragraphs in the current thread's document, once it is known
+     */
+    void paragraphsFound(int paragraphs) {
+        DocumentProgress progress = openDocuments.get(Thread.currentThread());
+        if (progress != null) {
+            progress.total = paragraphs;
+            progress.growing = false;
+        }
+    }
+
+    /**
+     * One more paragraph of a streamed document, whose total is only known once it is read
+     */
+    void paragraphFound() {
+        DocumentProgress progress = openDocuments.get(Thread.currentThread());
+        if (progress != null) {
+            progress.growing = true;
+            progress.total = Math.max(progress.total, 0) + 1;
+        }
+    }
+
+    void documentFinished(boolean succeeded) {
+        openDocuments.remove(Thread.currentThread());
+        documentsInFlight.decrementAndGet();
+        (succeeded ? documentsDone : documentsFailed).incrementAndGet();
+    }
+
+    /**
+     * Blocks while paused; returns the start time to hand back to paragraphFinished
+     */
+    long paragraphStarted() throws InterruptedException {
+        awaitResumed();
+        paragraphsInFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void paragraphFinished(long startedAt, Outcome outcome) {
+        paragraphsInFlight.decrementAndGet();
+        // Skipped paragraphs are timed too, so the mean matches the mix still ahead
+        paragraphTimes.recordNanos(System.nanoTime() - startedAt);
+        switch (outcome) {
+            case DONE:
+                paragraphsDone.incrementAndGet();
+                break;
+            case SKIPPED:
+                paragraphsSkipped.incrementAndGet();
+                break;
+            default:
+                paragraphsFailed.incrementAndGet();
+        }
+        DocumentProgress progress = openDocuments.get(Thread.currentThread());
+        if (progress != null) {
+            progress.finished.incrementAndGet();
+            if (outcome == Outcome.FLAGGED) {
+                progress.flagged.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Paragraphs flagged so far in the current thread's document
+     */
+    int flaggedInCurrentDocument() {
+        DocumentProgress progress = openDocuments.get(Thread.currentThread());
+        return progress == null ? 0 : progress.flagged.get();
+    }
+
+    private void awaitResumed() throws InterruptedException {
+        synchronized (gate) {
+            while (paused && !draining) {
+                gate.wait();
+            }
+        }
+    }
+
+    // --- Attributes ---
+
+    @Override
+    public int getDocumentsQueued() {
+        return documentsQueued.get();
+    }
+
+    @Override
+    public int getDocumentsInFlight() {
+        return documentsInFlight.get();
+    }
+
+    @Override
+    public long getDocumentsDone() {
+        return documentsDone.get();
+    }
+
+    @Override
+    public long getDocumentsFailed() {
+        return documentsFailed.get();
+    }
+
+    @Override
+    public long getDocumentsDrained() {
+        return documentsDrained.get();
+    }
+
+    @Override
+    public long getParagraphsQueued() {
+        long remaining = Math.round(Math.max(0, queuedCost.sum()));
+        for (DocumentProgress progress : openDocuments.values()) {
+            remaining += progress.remaining();
+        }
+        return remaining;
+    }
+
+    @Override
+    public int getParagraphsInFlight() {
+        return paragraphsInFlight.get();
+    }
+
+    @Override
+    public long getParagraphsDone() {
+        return paragraphsDone.get();
+    }
+
+    @Override
+    public long getParagraphsSkipped() {
+        return paragraphsSkipped.get();
+    }
+
+    @Override
+    public long getParagraphsFailed() {
+        return paragraphsFailed.get();
+    }
+
+    @Override
+    public double getLlmLatencyMeanMillis() {
+        return recentLatency().meanMillis();
+    }
+
+    @Override
+    public double getLlmLatencyP50Millis() {
+        return recentLatency().percentileMillis(50);
+    }
+
+    @Override
+    public double getLlmLatencyP90Millis() {
+        return recentLatency().percentileMillis(90);
+    }
+
+    @Override
+    public double getLlmLatencyP99Millis() {
+        return recentLatency().percentileMillis(99);
+    }
+
+    /**
+     * Share of finished paragraphs that needed no LLM call (skipped style, empty, pre-filter)
+     */
+    @Override
+    public double getSkipRate() {
+        long finished = paragraphsDone.get() + paragraphsSkipped.get() + paragraphsFailed.get();
+        return finished == 0 ? 0.0 : (double) paragraphsSkipped.get() / finished;
+    }
+
+    /**
+     * Share of LLM requests answered by an identical request already in flight
+     */
+    @Override
+    public double getCoalescedRate() {
+        long requests = inFlightRequests.getExecuted() + inFlightRequests.getCoalesced();
+        return requests == 0 ? 0.0 : (double) inFlightRequests.getCoalesced() / requests;
+    }
+
+    @Override
+    public String[] getDocumentProgress() {
+        double secondsPerParagraph = secondsPerParagraph();
+        List<String> lines = new ArrayList<>();
+        for (DocumentProgress progress : openDocuments.values()) {
+            String line = progress.name + ": " + progress.finished.get() + "/"
+                    + (progress.total < 0 ? "?" : progress.total + (progress.growing ? "+" : "")) + " paragraphs";
+            if (progress.total >= 0 && !progress.growing && secondsPerParagraph > 0) {
+                line += String.format(Locale.ROOT, ", ETA %.0f s", progress.remaining() * secondsPerParagraph);
+            }
+            lines.add(line);
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Remaining paragraphs at the observed time per paragraph, spread over the documents in flight
+     */
+    @Override
+    public double getEstimatedSecondsRemaining() {
+        int parallelism = Math.max(1, documentsInFlight.get());
+        return getParagraphsQueued() * secondsPerParagraph() / parallelism;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public boolean isDraining() {
+        return draining;
+    }
+
+    // --- Operations ---
+
+    @Override
+    public void pause() {
+        paused = true;
+        System.out.println("Paused by operator");
+    }
+
+    @Override
+    public void resume() {
+        synchronized (gate) {
+            paused = false;
+            gate.notifyAll();
+        }
+        System.out.println("Resumed by operator");
+    }
+
+    @Override
+    public void drain() {
+        synchronized (gate) {
+            draining = true;
+            gate.notifyAll();
+        }
+        System.out.println("Draining: finishing documents in flight, leaving the rest in the input folder");
+    }
+
+    private double secondsPerParagraph() {
+        return paragraphTimes.snapshot().meanMillis() / 1000.0;
+    }
+
+    private synchronized LatencyRecorder.Snapshot recentLatency() {
+        LatencyRecorder.Snapshot now = llmLatencies.snapshot();
+        if (System.nanoTime() - rolledAt >= LATENCY_WINDOW_NANOS) {
+            windowStart = windowNext;
+            windowNext = now;
+            rolledAt = System.nanoTime();
+        }
+        return now.since(windowStart);
+    }
+
+    private static final class DocumentProgress {
+        final String name;
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger flagged = new AtomicInteger();
+        volatile int total = -1;
+        // Streamed: total so far, the rest of the document is still unread
+        volatile boolean growing;
+
+        DocumentProgress(String name) {
+            this.name = name;
+        }
+
+        int remaining() {
+            return total < 0 ? 0 : Math.max(0, total - finished.get());
+        }
+    }
+}
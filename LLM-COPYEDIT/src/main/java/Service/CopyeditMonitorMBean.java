@@ -0,0 +1,54 @@
+package Service;
+
+/**
+ * Live view of a running batch, published over JMX as Service:type=CopyeditMonitor.
+ * Latency percentiles cover roughly the last one to two minutes.
+ */
+public interface CopyeditMonitorMBean {
+
+    int getDocumentsQueued();
+
+    int getDocumentsInFlight();
+
+    long getDocumentsDone();
+
+    long getDocumentsFailed();
+
+    long getDocumentsDrained();
+
+    long getParagraphsQueued();
+
+    int getParagraphsInFlight();
+
+    long getParagraphsDone();
+
+    long getParagraphsSkipped();
+
+    long getParagraphsFailed();
+
+    double getLlmLatencyMeanMillis();
+
+    double getLlmLatencyP50Millis();
+
+    double getLlmLatencyP90Millis();
+
+    double getLlmLatencyP99Millis();
+
+    double getSkipRate();
+
+    double getCoalescedRate();
+
+    String[] getDocumentProgress();
+
+    double getEstimatedSecondsRemaining();
+
+    boolean isPaused();
+
+    boolean isDraining();
+
+    void pause();
+
+    void resume();
+
+    void drain();
+}
@@ -0,0 +1,292 @@
+package Service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident service mode: a long-lived JVM with the models, POI and XMLBeans already
+ * warm, so an on-demand copyedit costs only its LLM calls. Started with the "serve"
+ * argument.
+ *
+ *   POST /copyedit?name=paper.docx   body is the DOCX, response is the corrected DOCX
+ *   GET  /health                     JSON with status, queue depth and counters
+ *
+ * At most spellcheck.server.concurrency documents (default 2) are corrected at once;
+ * up to spellcheck.server.queue more (default 16) wait their turn, and anything
+ * beyond that is turned away with 503 and Retry-After instead of piling up. Uploads
+ * larger than spellcheck.server.maxMegabytes (default 100) get 413. Documents are
+ * corrected in memory and never touch the input or output folders; the corrected
+ * package is streamed back with chunked encoding.
+ *
+ * A file that is not a readable DOCX gets 422. Backend failures get 502, or 503 with
+ * Retry-After while the backend is down, so a client knows the request may be repeated.
+ *
+ * Other settings: spellcheck.server.port (default 8095), spellcheck.server.host
+ * (default 127.0.0.1).
+ */
+class CopyeditServer {
+
+    private static final String DOCX_TYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+
+    private final String host;
+    private final int port;
+    private final int concurrency;
+    private final int queueCapacity;
+    private final long maxBytes;
+
+    private final Semaphore slots;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyRecorder turnaround = new LatencyRecorder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    CopyeditServer(String host, int port, int concurrency, int queueCapacity, long maxBytes) {
+        this.host = host;
+        this.port = port;
+        this.concurrency = Math.max(1, concurrency);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.maxBytes = maxBytes;
+        this.slots = new Semaphore(this.concurrency, true);
+    }
+
+    static CopyeditServer fromSystemProperties() {
+        return new CopyeditServer(
+                System.getProperty("spellcheck.server.host", "127.0.0.1"),
+                Integer.getInteger("spellcheck.server.port", 8095),
+                Integer.getInteger("spellcheck.server.concurrency", 2),
+                Integer.getInteger("spellcheck.server.queue", 16),
+                Long.getLong("spellcheck.server.maxMegabytes", 100L) * 1024 * 1024);
+    }
+
+    static void main() {
+        CopyeditServer server = fromSystemProperties();
+        try {
+            SpellCheckProcessor.warmUp();
+            SpellCheckProcessor.monitor().register();
+            server.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.println(server.summary());
+        }));
+        System.out.println("Copyedit server listening on http://" + server.host + ":" + server.getPort()
+                + " (" + server.concurrency + " concurrent, " + server.queueCapacity + " queued)");
+    }
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        // Waiting requests park on the semaphore; admission control, not the thread count, bounds the work
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "copyedit-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/copyedit", this::handleCopyedit);
+        server.createContext("/health", this::handleHealth);
+        server.start();
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(5);
+            executor.shutdownNow();
+        }
+    }
+
+    int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    private void handleCopyedit(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Use POST with the DOCX as the request body");
+                return;
+            }
+            if (admitted.incrementAndGet() > concurrency + queueCapacity) {
+                admitted.decrementAndGet();
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                sendText(exchange, 503, "Queue full");
+                return;
+            }
+            try {
+                process(exchange);
+            } finally {
+                admitted.decrementAndGet();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        String name = documentName(exchange);
+        long start = System.nanoTime();
+
+        byte[] source = readBody(exchange.getRequestBody());
+        if (source == null) {
+            sendText(exchange, 413, "Document larger than " + maxBytes / (1024 * 1024) + " MB");
+            return;
+        }
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Shutting down");
+            return;
+        }
+        inFlight.incrementAndGet();
+        CopyeditMonitor monitor = SpellCheckProcessor.monitor();
+        monitor.documentStarted(name);
+        long traceStart = TraceRecorder.get().start();
+        boolean succeeded = false;
+        XWPFDocument doc;
+        try {
+            try {
+                doc = SpellCheckProcessor.loadDocument(source);
+            } catch (IOException | RuntimeException e) {
+                reject(exchange, 422, name, e);
+                return;
+            }
+            try {
+                SpellCheckProcessor.correctDocument(doc);
+                succeeded = true;
+            } catch (IOException e) {
+                // The document is fine, the backend is not; tell the client whether waiting will help
+                boolean unavailable = CircuitBreaker.isOutage(e) || e instanceof InterruptedIOException;
+                if (unavailable) {
+                    exchange.getResponseHeaders().set("Retry-After", "30");
+                }
+                reject(exchange, unavailable ? 503 : 502, name, e);
+                return;
+            } catch (RuntimeException e) {
+                reject(exchange, 422, name, e);
+                return;
+            }
+        } finally {
+            monitor.documentFinished(succeeded);
+            TraceRecorder.get().complete("document", "document", traceStart, "file", name, "ok", succeeded);
+            inFlight.decrementAndGet();
+            slots.release();
+        }
+
+        // Streamed with chunked encoding; the slot is already free for the next document
+        exchange.getResponseHeaders().set("Content-Type", DOCX_TYPE);
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"" + SpellCheckProcessor.correctedFileName(name) + "\"");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            SpellCheckProcessor.writeDocument(doc, source, name, out);
+        } catch (IOException e) {
+            // Too late for a status code; the client sees the response cut short
+            failed.incrementAndGet();
+            System.err.println("Error sending " + name + ": " + e.getMessage());
+            return;
+        }
+        turnaround.recordNanos(System.nanoTime() - start);
+        served.incrementAndGet();
+        System.out.println("Served: " + name);
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            JSONObject health = new JSONObject()
+                    .put("status", "ok")
+                    .put("inFlight", inFlight.get())
+                    .put("queued", Math.max(0, admitted.get() - inFlight.get()))
+                    .put("concurrency", concurrency)
+                    .put("queueCapacity", queueCapacity)
+                    .put("served", served.get())
+                    .put("failed", failed.get())
+                    .put("rejected", rejected.get());
+            byte[] body = health.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Whole body, or null once it grows past maxBytes
+    private byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > maxBytes) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    // Only the file name part of ?name=, and nothing that could break the Content-Disposition header
+    private static String documentName(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("name=")) {
+                    String name = URLDecoder.decode(parameter.substring(5), StandardCharsets.UTF_8)
+                            .replaceAll("[\"\\r\\n\\\\/]", "_");
+                    if (!name.trim().isEmpty()) {
+                        return Paths.get(name).getFileName().toString();
+                    }
+                }
+            }
+        }
+        return "document.docx";
+    }
+
+    private void reject(HttpExchange exchange, int status, String name, Exception cause) throws IOException {
+        failed.incrementAndGet();
+        System.err.println("Error processing " + name + ": " + cause.getMessage());
+        sendText(exchange, status, "Could not correct " + name + ": " + cause.getMessage());
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String summary() {
+        return "Copyedit server: " + served.get() + " served, " + failed.get() + " failed, "
+                + rejected.get() + " turned away; turnaround " + turnaround.snapshot().summary();
+    }
+}
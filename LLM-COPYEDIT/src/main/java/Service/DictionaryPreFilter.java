@@ -0,0 +1,310 @@
+package Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local pre-screen that decides whether a masked paragraph is worth an LLM call.
+ * Words are looked up in a Bloom filter built from a word list plus an optional
+ * domain lexicon, and a few cheap punctuation/spacing checks catch the rest.
+ *
+ * Configured through system properties:
+ *   spellcheck.prefilter.strictness  OFF (default), STRICT or LENIENT
+ *   spellcheck.prefilter.wordlist    word list file, one word per line
+ *   spellcheck.prefilter.lexicon     optional domain lexicon, same format
+ */
+class DictionaryPreFilter {
+
+    enum Strictness {
+        OFF,     // Send every paragraph
+        STRICT,  // Skip only paragraphs where every word is known and no heuristic fires
+        LENIENT  // Additionally tolerate unknown capitalised words (names, places)
+    }
+
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+
+    private final Strictness strictness;
+    private final BloomFilter dictionary;
+
+    private final AtomicLong screened = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    DictionaryPreFilter(Strictness strictness, BloomFilter dictionary) {
+        this.strictness = dictionary == null ? Strictness.OFF : strictness;
+        this.dictionary = dictionary;
+    }
+
+    static DictionaryPreFilter fromSystemProperties() {
+        Strictness strictness = parseStrictness(System.getProperty("spellcheck.prefilter.strictness", "OFF"));
+        if (strictness == Strictness.OFF) {
+            return new DictionaryPreFilter(Strictness.OFF, null);
+        }
+
+        String wordList = System.getProperty("spellcheck.prefilter.wordlist");
+        if (wordList == null || wordList.isEmpty()) {
+            System.err.println("Pre-filter disabled: spellcheck.prefilter.wordlist is not set");
+            return new DictionaryPreFilter(Strictness.OFF, null);
+        }
+
+        try {
+            List<String> words = new ArrayList<>(readWords(Paths.get(wordList)));
+            String lexicon = System.getProperty("spellcheck.prefilter.lexicon");
+            if (lexicon != null && !lexicon.isEmpty()) {
+                words.addAll(readWords(Paths.get(lexicon)));
+            }
+
+            BloomFilter filter = new BloomFilter(words.size(), FALSE_POSITIVE_RATE);
+            for (String word : words) {
+                filter.add(word.toLowerCase(Locale.ROOT));
+            }
+            System.out.println("Pre-filter loaded " + words.size() + " words (" + strictness + ")");
+            return new DictionaryPreFilter(strictness, filter);
+        } catch (IOException e) {
+            System.err.println("Pre-filter disabled: " + e.getMessage());
+            return new DictionaryPreFilter(Strictness.OFF, null);
+        }
+    }
+
+    // Read while SpellCheckProcessor initialises, so a typo must not stop it from starting
+    private static Strictness parseStrictness(String setting) {
+        try {
+            return Strictness.valueOf(setting.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown spellcheck.prefilter.strictness '" + setting + "', expected one of "
+                    + Arrays.toString(Strictness.values()) + "; pre-filter disabled");
+            return Strictness.OFF;
+        }
+    }
+
+    private static List<String> readWords(Path file) throws IOException {
+        List<String> words = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    words.add(line);
+                }
+            }
+        }
+        return words;
+    }
+
+    boolean isEnabled() {
+        return strictness != Strictness.OFF;
+    }
+
+    /**
+     * Returns true if the masked paragraph should go to the LLM, false if it looks clean.
+     */
+    boolean shouldSend(String maskedText) {
+        if (!isEnabled()) {
+            return true;
+        }
+        screened.incrementAndGet();
+        if (hasSuspiciousPunctuation(maskedText) || hasUnknownWords(maskedText)) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    private boolean hasUnknownWords(String text) {
+        String previousWord = null;
+        int i = 0;
+        int length = text.length();
+
+        while (i < length) {
+            char c = text.charAt(i);
+
+            // Placeholders such as «SUPSUB_0» or «URL_1» are opaque to the dictionary
+            if (c == '«') {
+                int end = text.indexOf('»', i);
+                i = end == -1 ? length : end + 1;
+                previousWord = null;
+                continue;
+            }
+
+            if (!Character.isLetterOrDigit(c)) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            boolean hasDigit = false;
+            while (i < length) {
+                char ch = text.charAt(i);
+                if (Character.isLetterOrDigit(ch)) {
+                    hasDigit |= Character.isDigit(ch);
+                    i++;
+                } else if ((ch == '\'' || ch == '’') && i + 1 < length && Character.isLetter(text.charAt(i + 1))) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+
+            String word = text.substring(start, i);
+            if (hasDigit) {
+                previousWord = null;
+                continue;
+            }
+
+            // Repeated words ("the the") are a cheap, common catch
+            if (word.equalsIgnoreCase(previousWord)) {
+                return true;
+            }
+            previousWord = word;
+
+            if (!isKnownWord(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isKnownWord(String word) {
+        // Acronyms such as DNA or the (SUP)/(SUB) markers
+        if (word.length() > 1 && word.equals(word.toUpperCase(Locale.ROOT))) {
+            return true;
+        }
+
+        String lower = word.toLowerCase(Locale.ROOT);
+        if (dictionary.mightContain(lower)) {
+            return true;
+        }
+
+        // Possessives: "author's", "authors’"
+        if (lower.endsWith("'s") || lower.endsWith("’s")) {
+            if (dictionary.mightContain(lower.substring(0, lower.length() - 2))) {
+                return true;
+            }
+        }
+
+        return strictness == Strictness.LENIENT && Character.isUpperCase(word.charAt(0));
+    }
+
+    private static boolean hasSuspiciousPunctuation(String text) {
+        int parens = 0;
+        int brackets = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            char next = i + 1 < text.length() ? text.charAt(i + 1) : '\0';
+
+            switch (c) {
+                case ' ':
+                    // Double spaces and space before punctuation
+                    if (next == ' ' || next == ',' || next == ';' || next == ':'
+                            || next == '!' || next == '?' || (next == '.' && !isEllipsisAt(text, i + 1))) {
+                        return true;
+                    }
+                    break;
+                case ',':
+                case ';':
+                    // Missing space after a comma or semicolon, or doubled punctuation
+                    if (Character.isLetter(next) || next == ',' || next == ';') {
+                        return true;
+                    }
+                    break;
+                case '(':
+                    parens++;
+                    break;
+                case ')':
+                    parens--;
+                    break;
+                case '[':
+                    brackets++;
+                    break;
+                case ']':
+                    brackets--;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return parens != 0 || brackets != 0;
+    }
+
+    private static boolean isEllipsisAt(String text, int index) {
+        return text.startsWith("...", index);
+    }
+
+    long getScreened() {
+        return screened.get();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    String summary() {
+        long total = screened.get();
+        long avoided = skipped.get();
+        double percent = total == 0 ? 0.0 : (avoided * 100.0) / total;
+        return String.format(Locale.ROOT, "Pre-filter (%s): %d of %d paragraphs skipped, %.1f%% of LLM calls avoided",
+                strictness, avoided, total, percent);
+    }
+
+    /**
+     * Fixed-size Bloom filter over lower-cased words using double hashing.
+     */
+    static class BloomFilter {
+        private final BitSet bits;
+        private final int bitCount;
+        private final int hashCount;
+
+        BloomFilter(int expectedEntries, double falsePositiveRate) {
+            int n = Math.max(1, expectedEntries);
+            long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bitCount = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 8, m));
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+            this.bits = new BitSet(bitCount);
+        }
+
+        void add(String value) {
+            int h1 = value.hashCode();
+            int h2 = fnv1a(value);
+            for (int i = 0; i < hashCount; i++) {
+                bits.set(index(h1, h2, i));
+            }
+        }
+
+        boolean mightContain(String value) {
+            int h1 = value.hashCode();
+            int h2 = fnv1a(value);
+            for (int i = 0; i < hashCount; i++) {
+                if (!bits.get(index(h1, h2, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int index(int h1, int h2, int i) {
+            int combined = h1 + i * h2;
+            return (combined & Integer.MAX_VALUE) % bitCount;
+        }
+
+        private static int fnv1a(String value) {
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x01000193;
+            }
+            // Keep the second hash odd so successive probes never collapse onto one bit
+            return hash | 1;
+        }
+    }
+}
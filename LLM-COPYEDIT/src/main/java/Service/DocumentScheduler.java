@@ -0,0 +1,275 @@
+package Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Walks the input tree and hands documents to workers shortest job first, so one
+ * long book does not hold up dozens of short articles queued behind it. The whole
+ * tree is walked and costed before the first job is dispatched; otherwise the first
+ * file found would start straight away, whatever its size.
+ *
+ * A job's cost is estimated from its paragraph count (each paragraph is roughly one
+ * LLM call) plus a small weight for file size. Waiting jobs age: every second spent
+ * in the queue lowers a job's effective cost by spellcheck.schedule.agingPerSecond,
+ * so large documents still start eventually. Because every job ages at the same
+ * rate, ordering by cost + aging * enqueueTime gives the same order at any moment.
+ *
+ * Configured through system properties:
+ *   spellcheck.recursive                 walk subfolders, default true
+ *   spellcheck.include                   comma-separated globs, default any .docx
+ *   spellcheck.exclude                   comma-separated globs, default ~$* (Word lock files)
+ *   spellcheck.schedule.agingPerSecond   default 2.0 paragraphs per second of waiting
+ *
+ * Globs without a '/' match the file name, others match the path relative to the input folder.
+ */
+class DocumentScheduler {
+
+    interface Worker {
+        void process(Path file);
+    }
+
+    private static final double COST_PER_MEGABYTE = 5.0;
+    private static final byte[] PARAGRAPH_TAG = "<w:p".getBytes();
+
+    private final Path root;
+    private final Path excludedDir;
+    private final boolean recursive;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final double agingPerSecond;
+    private final boolean includeClaims;
+    private final CopyeditMonitor monitor;
+    private final long epoch = System.nanoTime();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong totalTurnaroundMillis = new AtomicLong();
+    private final AtomicInteger completed = new AtomicInteger();
+
+    /**
+     * @param includeClaims also pick up lease claim files, which may have gone stale
+     * @param monitor       counts the queue and can pause or drain it
+     */
+    DocumentScheduler(Path root, Path excludedDir, boolean includeClaims, CopyeditMonitor monitor) {
+        this.root = root;
+        this.includeClaims = includeClaims;
+        this.monitor = monitor;
+        this.excludedDir = excludedDir.toAbsolutePath().normalize();
+        this.recursive = Boolean.parseBoolean(System.getProperty("spellcheck.recursive", "true"));
+        this.includes = matchers(System.getProperty("spellcheck.include", ""));
+        this.excludes = matchers(System.getProperty("spellcheck.exclude", "~$*"));
+        this.agingPerSecond = Double.parseDouble(System.getProperty("spellcheck.schedule.agingPerSecond", "2.0"));
+    }
+
+    private static List<PathMatcher> matchers(String patterns) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (!pattern.isEmpty()) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * Walk the tree and process every selected document on the given number of
+     * worker threads. Returns the number of documents dispatched.
+     */
+    int run(int workers, Worker worker) throws IOException, InterruptedException {
+        List<Path> selected = new ArrayList<>();
+        List<Double> costs = new ArrayList<>();
+        try (Stream<Path> files = recursive ? Files.walk(root) : Files.list(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (isSelected(file)) {
+                    selected.add(file);
+                    costs.add(estimateCost(file));
+                }
+            }
+        }
+
+        // Everything is enqueued at once, so no job has aged ahead of another before the workers start
+        PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+        for (int i = 0; i < selected.size(); i++) {
+            Job job = new Job(selected.get(i), costs.get(i), this);
+            monitor.documentQueued(job.cost);
+            queue.put(job);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.max(1, workers); i++) {
+                Thread thread = new Thread(() -> drain(queue, worker), "spellcheck-worker-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+        } finally {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(Job.poison());
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        if (completed.get() > 0) {
+            System.out.printf(Locale.ROOT, "Scheduled %d documents, mean turnaround %.1f s%n",
+                    completed.get(), totalTurnaroundMillis.get() / 1000.0 / completed.get());
+        }
+        return selected.size();
+    }
+
+    private void drain(PriorityBlockingQueue<Job> queue, Worker worker) {
+        try {
+            while (true) {
+                Job job = queue.take();
+                if (job.file == null) {
+                    return;
+                }
+                if (!monitor.awaitDispatch(job.cost)) {
+                    continue;
+                }
+                TraceRecorder.get().async("queue wait", "schedule", job.enqueuedAt, System.nanoTime(),
+                        "file", root.relativize(job.file).toString(), "estimatedParagraphs", job.cost);
+                try {
+                    worker.process(job.file);
+                } catch (RuntimeException e) {
+                    // One broken document must not take the worker, and the rest of the queue, with it
+                    System.err.println("Error processing " + root.relativize(job.file) + ": " + e);
+                    e.printStackTrace();
+                } finally {
+                    completed.incrementAndGet();
+                    totalTurnaroundMillis.addAndGet((System.nanoTime() - job.enqueuedAt) / 1_000_000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isSelected(Path file) {
+        if (!Files.isRegularFile(file) || file.toAbsolutePath().normalize().startsWith(excludedDir)) {
+            return false;
+        }
+        Path relative = root.relativize(file);
+        String claimed = includeClaims ? FileLeaseCoordinator.claimedDocumentName(file.getFileName().toString()) : null;
+        if (claimed != null) {
+            // A claim on "paper.docx" is selected exactly when "paper.docx" would be
+            relative = relative.resolveSibling(claimed);
+        }
+        if (includes.isEmpty()) {
+            if (!relative.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".docx")) {
+                return false;
+            }
+        } else if (!matchesAny(includes, relative)) {
+            return false;
+        }
+        return !matchesAny(excludes, relative);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relative) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative) || matcher.matches(relative.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimated cost in paragraphs. Counting <w:p elements only inflates the main
+     * part, never the media, so this stays cheap next to the LLM work it predicts.
+     */
+    static double estimateCost(Path file) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+        double sizeCost = size / (1024.0 * 1024.0) * COST_PER_MEGABYTE;
+
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            ZipEntry entry = zip.getEntry("word/document.xml");
+            if (entry == null) {
+                return sizeCost;
+            }
+            try (InputStream in = new BufferedInputStream(zip.getInputStream(entry), 64 * 1024)) {
+                return countParagraphTags(in) + sizeCost;
+            }
+        } catch (IOException e) {
+            // Unreadable files fail fast in the worker; schedule them early
+            return 0;
+        }
+    }
+
+    private static long countParagraphTags(InputStream in) throws IOException {
+        long count = 0;
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (matched == PARAGRAPH_TAG.length) {
+                // "<w:p>" or "<w:p ..." but not "<w:pPr>" or "<w:proofErr>"
+                if (b == '>' || b == ' ' || b == '/') {
+                    count++;
+                }
+                matched = 0;
+            }
+            if (b == PARAGRAPH_TAG[matched]) {
+                matched++;
+            } else {
+                matched = b == PARAGRAPH_TAG[0] ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    private static final class Job implements Comparable<Job> {
+        final Path file;
+        final long enqueuedAt;
+        final double cost;
+        final double priority;
+        final long order;
+
+        Job(Path file, double cost, DocumentScheduler scheduler) {
+            this.file = file;
+            this.enqueuedAt = System.nanoTime();
+            this.cost = cost;
+            this.priority = cost + scheduler.agingPerSecond * (enqueuedAt - scheduler.epoch) / 1e9;
+            this.order = scheduler.sequence.incrementAndGet();
+        }
+
+        private Job() {
+            this.file = null;
+            this.enqueuedAt = 0;
+            this.cost = 0;
+            this.priority = Double.POSITIVE_INFINITY;
+            this.order = Long.MAX_VALUE;
+        }
+
+        // Sorts after every real job, one per worker ends the run
+        static Job poison() {
+            return new Job();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int byPriority = Double.compare(priority, other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package Service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact response format: instead of re-emitting the paragraph, the model returns
+ * only its edits as [{"find": "...", "replace": "..."}], which are applied here to
+ * the masked text. A lightly edited paragraph then costs a few output tokens rather
+ * than the whole paragraph. If the response is not a usable edit list, or an edit's
+ * anchor cannot be found, apply returns null and the caller falls back to full text.
+ *
+ * Enabled with spellcheck.response.format=edits (default "text").
+ */
+class EditListFormat {
+
+    static final String PROMPT_RULES = "\n\nRESPONSE FORMAT:\n"
+            + "- Do NOT return the corrected text. Return ONLY a JSON array of edits, for example "
+            + "[{\"find\": \"teh sample\", \"replace\": \"the sample\"}].\n"
+            + "- \"find\" must be copied exactly from the input, just long enough to be unique, "
+            + "and edits must be listed in the order they occur.\n"
+            + "- Return [] if nothing needs to change.";
+
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    static boolean isEnabledBySystemProperties() {
+        return "edits".equalsIgnoreCase(System.getProperty("spellcheck.response.format", "text").trim());
+    }
+
+    /**
+     * Apply the edit list in response to text. Returns null if the response is not an
+     * edit list or any edit does not anchor; an empty list returns text unchanged.
+     */
+    String apply(String text, String response) {
+        String result = applyEdits(text, response);
+        if (result == null) {
+            fallbacks.incrementAndGet();
+        } else {
+            applied.incrementAndGet();
+        }
+        return result;
+    }
+
+    private static String applyEdits(String text, String response) {
+        if (response == null) {
+            return null;
+        }
+        // Models like to wrap JSON in a code fence or a sentence; only the array matters
+        int open = response.indexOf('[');
+        int close = response.lastIndexOf(']');
+        if (open == -1 || close < open) {
+            return null;
+        }
+
+        JSONArray edits;
+        try {
+            edits = new JSONArray(response.substring(open, close + 1));
+        } catch (JSONException e) {
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder(text.length() + 16);
+        int cursor = 0;
+        for (int i = 0; i < edits.length(); i++) {
+            JSONObject edit = edits.optJSONObject(i);
+            if (edit == null) {
+                return null;
+            }
+            String find = edit.optString("find", null);
+            String replace = edit.optString("replace", null);
+            if (find == null || find.isEmpty() || replace == null) {
+                return null;
+            }
+            // Edits come in document order, so each anchor is searched after the previous one
+            int at = text.indexOf(find, cursor);
+            if (at == -1) {
+                return null;
+            }
+            result.append(text, cursor, at).append(replace);
+            cursor = at + find.length();
+        }
+        return result.append(text, cursor, text.length()).toString();
+    }
+
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    String summary() {
+        return "Edit-list responses: " + applied.get() + " applied, " + fallbacks.get() + " fell back to full text";
+    }
+}
@@ -0,0 +1,237 @@
+package Service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets several nodes share one input folder. A node claims a document by atomically
+ * renaming "paper.docx" to "paper.docx.&lt;node&gt;.claim"; only one rename can win, so
+ * only one node ever processes it. The claim file's modification time is the lease:
+ * a heartbeat refreshes it while the node works, and a claim that has not been
+ * refreshed for the lease TTL is taken over the same way, by renaming it.
+ *
+ * Configured through system properties:
+ *   spellcheck.coordination          "lease" to enable, default off
+ *   spellcheck.node.id               default host-pid, must be unique per node
+ *   spellcheck.lease.ttlSeconds      default 120; heartbeats run every third of it
+ *
+ * Several JVMs started on the same directory with different node IDs split it safely.
+ */
+class FileLeaseCoordinator {
+
+    static final String CLAIM_SUFFIX = ".claim";
+    private static final String DOCX_INFIX = ".docx.";
+
+    private final String nodeId;
+    private final long ttlMillis;
+    private final Set<Lease> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeat;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    FileLeaseCoordinator(String nodeId, long ttlMillis) {
+        this.nodeId = nodeId.replaceAll("[^A-Za-z0-9_-]", "_");
+        this.ttlMillis = ttlMillis;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spellcheck-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, ttlMillis / 3);
+        heartbeat.scheduleAtFixedRate(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns null unless spellcheck.coordination=lease
+     */
+    static FileLeaseCoordinator fromSystemProperties() {
+        if (!"lease".equalsIgnoreCase(System.getProperty("spellcheck.coordination", "off").trim())) {
+            return null;
+        }
+        String nodeId = System.getProperty("spellcheck.node.id", defaultNodeId());
+        long ttl = TimeUnit.SECONDS.toMillis(Long.getLong("spellcheck.lease.ttlSeconds", 120L));
+        FileLeaseCoordinator coordinator = new FileLeaseCoordinator(nodeId, ttl);
+        System.out.println("Lease coordination on as node " + coordinator.nodeId + ", TTL " + ttl / 1000 + " s");
+        return coordinator;
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * "paper.docx.node-1.claim" is a claim on "paper.docx"; returns null for any other name
+     */
+    static String claimedDocumentName(String fileName) {
+        if (!fileName.endsWith(CLAIM_SUFFIX)) {
+            return null;
+        }
+        int infix = fileName.toLowerCase(Locale.ROOT).lastIndexOf(DOCX_INFIX);
+        return infix <= 0 ? null : fileName.substring(0, infix + DOCX_INFIX.length() - 1);
+    }
+
+    /**
+     * Try to take a document or a stale claim on one. Returns null if another node holds it.
+     */
+    Lease tryClaim(Path file) {
+        String fileName = file.getFileName().toString();
+        String documentName = claimedDocumentName(fileName);
+        boolean stale = documentName != null;
+        if (!stale) {
+            documentName = fileName;
+        } else if (!isExpired(file)) {
+            return null;
+        }
+
+        Path claim = file.resolveSibling(documentName + "." + nodeId + CLAIM_SUFFIX);
+        try {
+            // Refresh first so nobody sees the renamed file as expired before the first heartbeat
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            moveAtomically(file, claim);
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            // Another node renamed it first
+            return null;
+        } catch (IOException e) {
+            System.err.println("Could not claim " + fileName + ": " + e.getMessage());
+            return null;
+        }
+
+        Lease lease = new Lease(claim, file.resolveSibling(documentName));
+        active.add(lease);
+        claimed.incrementAndGet();
+        if (stale) {
+            recovered.incrementAndGet();
+            System.out.println("Recovered stale lease " + fileName);
+        }
+        return lease;
+    }
+
+    private boolean isExpired(Path claim) {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(claim).toMillis() > ttlMillis;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new IOException("Shared folder does not support atomic rename", e);
+        }
+    }
+
+    private void renewAll() {
+        for (Lease lease : active) {
+            try {
+                Files.setLastModifiedTime(lease.claim, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (NoSuchFileException e) {
+                // Renamed away by a node that considered us dead; publish() will discard our output
+                if (active.remove(lease)) {
+                    lost.incrementAndGet();
+                    System.err.println("Lease lost on " + lease.document.getFileName());
+                }
+            } catch (IOException e) {
+                System.err.println("Lease heartbeat failed for " + lease.document.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    long getClaimed() {
+        return claimed.get();
+    }
+
+    String summary() {
+        return "Node " + nodeId + " claimed " + claimed.get() + " documents (" + recovered.get()
+                + " from stale leases, " + lost.get() + " leases lost)";
+    }
+
+    void shutdown() {
+        heartbeat.shutdownNow();
+    }
+
+    /**
+     * A document held by this node. Exactly one of complete() or release() ends it.
+     */
+    final class Lease {
+        private final Path claim;
+        private final Path document;
+
+        private Lease(Path claim, Path document) {
+            this.claim = claim;
+            this.document = document;
+        }
+
+        /** The renamed file to read the document from */
+        Path file() {
+            return claim;
+        }
+
+        /** The document's original path in the input folder */
+        Path document() {
+            return document;
+        }
+
+        /** Node-unique name to write an output under until publish() moves it onto target */
+        Path stagingFile(Path target) {
+            return target.resolveSibling(target.getFileName() + "." + nodeId + ".tmp");
+        }
+
+        /**
+         * Rename a staged output onto its target, but only while this node still holds the
+         * lease. A node that lost its lease gets an IOException instead, so it never
+         * overwrites the output of the node that took the document over.
+         */
+        void publish(Path staged, Path target) throws IOException {
+            try {
+                // Refreshed right before the rename, so nobody can see the lease as expired in between
+                Files.setLastModifiedTime(claim, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (NoSuchFileException e) {
+                if (active.remove(this)) {
+                    lost.incrementAndGet();
+                }
+                throw new IOException("Lease lost on " + document.getFileName() + ", output discarded", e);
+            }
+            moveAtomically(staged, target);
+        }
+
+        /** The claim file has been moved away by the caller */
+        void complete() {
+            active.remove(this);
+        }
+
+        /** Give the document back to the folder, e.g. after a failure */
+        void release() {
+            if (active.remove(this)) {
+                try {
+                    moveAtomically(claim, document);
+                } catch (IOException e) {
+                    System.err.println("Could not release " + document.getFileName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
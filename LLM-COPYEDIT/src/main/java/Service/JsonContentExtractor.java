@@ -0,0 +1,278 @@
+package Service;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming JSON reader that pulls a single string out of a response, such as
+ * choices[0].message.content, without building a tree for the rest of the document.
+ * Values off the path are skipped character by character.
+ */
+final class JsonContentExtractor {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ThreadLocal<char[]> BUFFERS = ThreadLocal.withInitial(() -> new char[BUFFER_SIZE]);
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+
+    private JsonContentExtractor(Reader reader) {
+        this.reader = reader;
+        this.buffer = BUFFERS.get();
+    }
+
+    /**
+     * Returns the string found at the given path of object keys (String) and array
+     * indexes (Integer), or null if the path does not exist or is not a string.
+     * The reader is drained to the end either way so the connection can be reused.
+     */
+    static String extract(Reader reader, Object... path) throws IOException {
+        JsonContentExtractor extractor = new JsonContentExtractor(reader);
+        String result = extractor.descend(path, 0);
+        extractor.drain();
+        return result;
+    }
+
+    // Returns the string at the path, or null once the current value has been fully consumed
+    private String descend(Object[] path, int level) throws IOException {
+        int c = nextNonWhitespace();
+
+        if (level == path.length) {
+            if (c == '"') {
+                return readString();
+            }
+            skipValue(c);
+            return null;
+        }
+
+        Object step = path[level];
+        if (step instanceof String && c == '{') {
+            c = nextNonWhitespace();
+            while (c != '}') {
+                if (c != '"') {
+                    throw syntaxError("object key");
+                }
+                boolean match = matchString((String) step);
+                expect(':');
+                if (match) {
+                    String found = descend(path, level + 1);
+                    if (found != null) {
+                        return found;
+                    }
+                } else {
+                    skipValue(nextNonWhitespace());
+                }
+                c = nextNonWhitespace();
+                if (c == ',') {
+                    c = nextNonWhitespace();
+                } else if (c != '}') {
+                    throw syntaxError("',' or '}'");
+                }
+            }
+            return null;
+        }
+
+        if (step instanceof Integer && c == '[') {
+            int wanted = (Integer) step;
+            int index = 0;
+            c = peekNonWhitespace();
+            if (c == ']') {
+                read();
+                return null;
+            }
+            while (true) {
+                if (index == wanted) {
+                    String found = descend(path, level + 1);
+                    if (found != null) {
+                        return found;
+                    }
+                } else {
+                    skipValue(nextNonWhitespace());
+                }
+                index++;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return null;
+                }
+                if (c != ',') {
+                    throw syntaxError("',' or ']'");
+                }
+            }
+        }
+
+        skipValue(c);
+        return null;
+    }
+
+    private void skipValue(int c) throws IOException {
+        switch (c) {
+            case '"':
+                skipString();
+                return;
+            case '{':
+            case '[':
+                int depth = 1;
+                while (depth > 0) {
+                    int next = read();
+                    if (next == -1) {
+                        throw syntaxError("end of container");
+                    } else if (next == '"') {
+                        skipString();
+                    } else if (next == '{' || next == '[') {
+                        depth++;
+                    } else if (next == '}' || next == ']') {
+                        depth--;
+                    }
+                }
+                return;
+            case -1:
+                throw syntaxError("value");
+            default:
+                // Number, true, false or null: consume up to the next delimiter
+                while (true) {
+                    int next = peek();
+                    if (next == -1 || next == ',' || next == '}' || next == ']' || isWhitespace(next)) {
+                        return;
+                    }
+                    read();
+                }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                read();
+            } else if (c == -1) {
+                throw syntaxError("end of string");
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == -1) {
+                throw syntaxError("end of string");
+            }
+            sb.append(c == '\\' ? readEscape() : (char) c);
+        }
+    }
+
+    // Consumes a string and compares it with the expected key without allocating
+    private boolean matchString(String expected) throws IOException {
+        int index = 0;
+        boolean match = true;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return match && index == expected.length();
+            }
+            if (c == -1) {
+                throw syntaxError("end of string");
+            }
+            char decoded = c == '\\' ? readEscape() : (char) c;
+            if (match && (index >= expected.length() || expected.charAt(index) != decoded)) {
+                match = false;
+            }
+            index++;
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("hex digit");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("escape sequence");
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("'" + expected + "'");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = read();
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        int c = peek();
+        while (isWhitespace(c)) {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private void drain() throws IOException {
+        while (reader.read(buffer, 0, buffer.length) != -1) {
+            // Discard
+        }
+    }
+
+    private IOException syntaxError(String expected) {
+        return new IOException("Malformed JSON response: expected " + expected);
+    }
+}
@@ -0,0 +1,190 @@
+package Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Minimal streaming JSON encoder that writes UTF-8 straight to an output stream.
+ * Characters are encoded into a per-thread scratch buffer that is reused across
+ * requests, so building a payload allocates no intermediate strings.
+ */
+final class JsonStreamWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 32;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+
+    // needsComma[depth] is true once the current object/array already holds a value
+    private final boolean[] needsComma = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    JsonStreamWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BUFFERS.get();
+    }
+
+    JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonStreamWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonStreamWriter value(String value) throws IOException {
+        separate();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    JsonStreamWriter value(long value) throws IOException {
+        separate();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    JsonStreamWriter value(double value) throws IOException {
+        separate();
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    JsonStreamWriter value(boolean value) throws IOException {
+        separate();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+
+    private JsonStreamWriter open(char bracket) throws IOException {
+        separate();
+        if (depth + 1 >= MAX_DEPTH) {
+            throw new IOException("JSON nesting deeper than " + MAX_DEPTH);
+        }
+        writeByte(bracket);
+        needsComma[++depth] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char bracket) throws IOException {
+        writeByte(bracket);
+        depth--;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            if (needsComma[depth]) {
+                writeByte(',');
+            }
+            needsComma[depth] = true;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                writeEscaped(c);
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, not representable in UTF-8
+                writeEscaped('\uFFFD');
+            } else {
+                ensure(3);
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscaped(char c) throws IOException {
+        switch (c) {
+            case '\n': writeByte('\\'); writeByte('n'); return;
+            case '\r': writeByte('\\'); writeByte('r'); return;
+            case '\t': writeByte('\\'); writeByte('t'); return;
+            case '\b': writeByte('\\'); writeByte('b'); return;
+            case '\f': writeByte('\\'); writeByte('f'); return;
+            default:
+                ensure(6);
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = HEX[(c >> 12) & 0xF];
+                buffer[position++] = HEX[(c >> 8) & 0xF];
+                buffer[position++] = HEX[(c >> 4) & 0xF];
+                buffer[position++] = HEX[c & 0xF];
+        }
+    }
+
+    private void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            writeByte(text.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
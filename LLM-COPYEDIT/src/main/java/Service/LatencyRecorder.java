@@ -0,0 +1,125 @@
+package Service;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (about 3% relative error),
+ * cheap enough to record every backend call from many threads.
+ */
+class LatencyRecorder {
+
+    // Values below 64 µs get exact buckets, above that 32 sub-buckets per power of two
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    void recordMicros(long micros) {
+        buckets.incrementAndGet(bucketOf(Math.max(0, micros)));
+        count.increment();
+        totalMicros.add(micros);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(copy, count.sum(), totalMicros.sum());
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + subBucket;
+    }
+
+    // Midpoint of the bucket's value range
+    private static long valueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + width / 2;
+    }
+
+    /**
+     * Immutable copy of the histogram. Subtracting an older snapshot gives the
+     * distribution for just the interval between them.
+     */
+    static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long totalMicros;
+
+        private Snapshot(long[] buckets, long count, long totalMicros) {
+            this.buckets = buckets;
+            this.count = count;
+            this.totalMicros = totalMicros;
+        }
+
+        Snapshot since(Snapshot earlier) {
+            long[] delta = new long[buckets.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = buckets[i] - earlier.buckets[i];
+            }
+            return new Snapshot(delta, count - earlier.count, totalMicros - earlier.totalMicros);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        double meanMillis() {
+            return count == 0 ? 0.0 : totalMicros / 1000.0 / count;
+        }
+
+        /**
+         * @param percentile 0-100
+         */
+        double percentileMillis(double percentile) {
+            if (count == 0) {
+                return 0.0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return valueOf(i) / 1000.0;
+                }
+            }
+            return valueOf(buckets.length - 1) / 1000.0;
+        }
+
+        String summary() {
+            return String.format(Locale.ROOT, "n=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max<=%.1fms",
+                    count, meanMillis(), percentileMillis(50), percentileMillis(90),
+                    percentileMillis(99), percentileMillis(100));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package Service;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * HTTP client for the inference server. Talks either to the generic OpenAI-style
+ * /v1/chat/completions endpoint or to the server's native /api/chat endpoint, which
+ * additionally lets us pin the model in memory and size the context per request.
+ *
+ * Configured through system properties:
+ *   spellcheck.api.mode       openai (default) or native
+ *   spellcheck.api.url        server base URL, default http://localhost:11434
+ *   spellcheck.model          model name, default qwen2.5:3b (see ModelRouter for two tiers)
+ *   spellcheck.keepAlive      native mode: how long the model stays loaded, default 30m (-1 = forever)
+ *   spellcheck.numCtx.min     native mode: smallest context window, default 2048
+ *   spellcheck.numCtx.max     native mode: largest context window, default 8192
+ *   spellcheck.warmup         native mode: load the model before the first document, default true
+ *   spellcheck.http.connectTimeoutMs  time allowed to open a connection, default 10000
+ *   spellcheck.http.readTimeoutMs     time allowed between bytes of the answer, default 300000
+ */
+class LlmBackend {
+
+    enum Mode { OPENAI, NATIVE }
+
+    static final String NO_CORRECTION = "No corrected text found.";
+
+    // Rough English average, deliberately on the high side so the context is never too small
+    private static final int CHARS_PER_TOKEN = 3;
+
+    private final Mode mode;
+    private final String baseUrl;
+    private final String model;
+    private final String keepAlive;
+    private final int minContext;
+    private final int maxContext;
+    private final boolean warmUp;
+    // A hung server must surface as a timeout, or a worker waits forever and retries never start
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    private final LatencyRecorder latencies;
+    private final RetryPolicy retry;
+
+    // The server reloads the model whenever num_ctx changes, so the window only ever grows
+    private volatile int contextWindow;
+
+    LlmBackend(Mode mode, String baseUrl, String model, String keepAlive,
+               int minContext, int maxContext, boolean warmUp, int connectTimeoutMillis, int readTimeoutMillis,
+               LatencyRecorder latencies, RetryPolicy retry) {
+        this.mode = mode;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.model = model;
+        this.keepAlive = keepAlive;
+        this.minContext = minContext;
+        this.maxContext = Math.max(minContext, maxContext);
+        this.warmUp = warmUp;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.contextWindow = minContext;
+        this.latencies = latencies;
+        this.retry = retry;
+    }
+
+    /**
+     * Backend for one model on one server; the remaining settings come from system properties.
+     * Backends on the same server should share its retry policy, and with it the circuit breaker.
+     */
+    static LlmBackend fromSystemProperties(String model, String baseUrl, LatencyRecorder latencies,
+                                           RetryPolicy retry) {
+        return new LlmBackend(
+                Mode.valueOf(System.getProperty("spellcheck.api.mode", "openai").trim().toUpperCase(Locale.ROOT)),
+                baseUrl,
+                model,
+                System.getProperty("spellcheck.keepAlive", "30m"),
+                Integer.getInteger("spellcheck.numCtx.min", 2048),
+                Integer.getInteger("spellcheck.numCtx.max", 8192),
+                Boolean.parseBoolean(System.getProperty("spellcheck.warmup", "true")),
+                Integer.getInteger("spellcheck.http.connectTimeoutMs", 10_000),
+                Integer.getInteger("spellcheck.http.readTimeoutMs", 300_000),
+                latencies,
+                retry);
+    }
+
+    String getModel() {
+        return model;
+    }
+
+    LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retry;
+    }
+
+    /**
+     * Loads the model and pins it with keep_alive so the first documents of a batch
+     * don't pay for a cold load. Only meaningful in native mode.
+     */
+    void warmUp() {
+        if (mode != Mode.NATIVE || !warmUp) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            // An empty message list makes the server load the model without generating anything
+            post(baseUrl + "/api/chat", json -> {
+                json.beginObject();
+                json.name("model").value(model);
+                json.name("messages").beginArray().endArray();
+                writeKeepAlive(json);
+                json.name("options").beginObject().name("num_ctx").value(contextWindow).endObject();
+                json.endObject();
+            }, "message", "content");
+            System.out.println("Warmed up model " + model + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.err.println("Model warm-up failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends one chat turn and returns the assistant's content.
+     */
+    String chat(String systemPrompt, String text) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return extractCorrectedText(send(systemPrompt, text));
+        } finally {
+            latencies.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private String send(String systemPrompt, String text) throws IOException {
+        if (mode == Mode.NATIVE) {
+            int numCtx = contextWindowFor(systemPrompt, text);
+            int numPredict = predictLimitFor(text);
+            return post(baseUrl + "/api/chat", json -> {
+                json.beginObject();
+                json.name("model").value(model);
+                writeMessages(json, systemPrompt, text);
+                json.name("stream").value(false);
+                writeKeepAlive(json);
+                json.name("options").beginObject()
+                        .name("temperature").value(0.1)
+                        .name("num_ctx").value(numCtx)
+                        .name("num_predict").value(numPredict)
+                        .endObject();
+                json.endObject();
+            }, "message", "content");
+        }
+
+        return post(baseUrl + "/v1/chat/completions", json -> {
+            json.beginObject();
+            json.name("model").value(model);
+            writeMessages(json, systemPrompt, text);
+            json.name("temperature").value(0.1);
+            json.endObject();
+        }, "choices", 0, "message", "content");
+    }
+
+    private static void writeMessages(JsonStreamWriter json, String systemPrompt, String text) throws IOException {
+        json.name("messages").beginArray();
+        json.beginObject().name("role").value("system").name("content").value(systemPrompt).endObject();
+        json.beginObject().name("role").value("user").name("content").value(text).endObject();
+        json.endArray();
+    }
+
+    private void writeKeepAlive(JsonStreamWriter json) throws IOException {
+        // Durations like "30m" are strings, a bare number of seconds (or -1) is sent as a number
+        json.name("keep_alive");
+        if (keepAlive.matches("-?\\d+")) {
+            json.value(Long.parseLong(keepAlive));
+        } else {
+            json.value(keepAlive);
+        }
+    }
+
+    // The corrected text is about as long as the input; leave headroom for small insertions
+    private int predictLimitFor(String text) {
+        int inputTokens = text.length() / CHARS_PER_TOKEN + 1;
+        return inputTokens + inputTokens / 4 + 64;
+    }
+
+    private int contextWindowFor(String systemPrompt, String text) {
+        int needed = (systemPrompt.length() + text.length()) / CHARS_PER_TOKEN + predictLimitFor(text);
+        int window = contextWindow;
+        if (needed <= window || window >= maxContext) {
+            return window;
+        }
+        while (window < needed && window < maxContext) {
+            window *= 2;
+        }
+        window = Math.min(window, maxContext);
+        synchronized (this) {
+            if (window > contextWindow) {
+                contextWindow = window;
+            }
+            return contextWindow;
+        }
+    }
+
+    private interface RequestBody {
+        void writeTo(JsonStreamWriter json) throws IOException;
+    }
+
+    // Streams the request body onto the connection and pulls the string at contentPath out of the response
+    private String post(String endpoint, RequestBody body, Object... contentPath) throws IOException {
+        TraceRecorder trace = TraceRecorder.get();
+        long traceStart = trace.start();
+        URL url = new URL(endpoint);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        // Without this HttpURLConnection buffers the whole body to compute Content-Length
+        connection.setChunkedStreamingMode(0);
+
+        try (OutputStream os = connection.getOutputStream()) {
+            JsonStreamWriter json = new JsonStreamWriter(os);
+            body.writeTo(json);
+            json.flush();
+        }
+        trace.complete("http send", "http", traceStart);
+
+        // getResponseCode blocks until the status line arrives, which is the time to first byte
+        traceStart = trace.start();
+        int responseCode = connection.getResponseCode();
+        trace.complete("ttfb", "http", traceStart, "status", responseCode);
+        if (responseCode == 200) {
+            traceStart = trace.start();
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+                return JsonContentExtractor.extract(reader, contentPath);
+            } finally {
+                trace.complete("receive", "http", traceStart);
+            }
+        } else {
+            throw new HttpStatusException(responseCode);
+        }
+    }
+
+    /**
+     * Non-200 answer from the server; the status tells a retry policy whether to try again
+     */
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        HttpStatusException(int status) {
+            super("HTTP " + status + " from API");
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    private static String extractCorrectedText(String content) {
+        if (content == null) {
+            System.err.println("Failed to parse JSON response: no message content");
+            return NO_CORRECTION;
+        }
+        return content;
+    }
+}
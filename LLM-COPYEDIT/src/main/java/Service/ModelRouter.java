@@ -0,0 +1,163 @@
+package Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier model cascade. Paragraphs go to a small, fast model first and are
+ * escalated to the stronger model when they look hard up front (long, or dense
+ * with placeholders), when the fast answer is suspect (it failed placeholder
+ * validation, or it changed too much of the paragraph to be a copyedit), or when
+ * the fast call failed altogether.
+ *
+ * Configured through system properties:
+ *   spellcheck.model.fast               fast tier model; routing is off when unset
+ *   spellcheck.model.strong             strong tier model, default spellcheck.model
+ *   spellcheck.api.url.strong           strong tier server, default spellcheck.api.url
+ *   spellcheck.route.maxFastChars       longer paragraphs go straight to the strong tier, default 600
+ *   spellcheck.route.maxPlaceholderDensity  placeholders per word above which the strong tier is used, default 0.2
+ *   spellcheck.route.maxEditRatio       share of the characters the fast tier may change, default 0.15
+ */
+class ModelRouter {
+
+    enum Tier { FAST, STRONG }
+
+    private final LlmBackend fast;
+    private final LlmBackend strong;
+    private final LatencyRecorder latencies;
+    private final int maxFastChars;
+    private final double maxPlaceholderDensity;
+    private final double maxEditRatio;
+
+    private final AtomicLong routedFast = new AtomicLong();
+    private final AtomicLong routedStrong = new AtomicLong();
+    private final AtomicLong escalatedInvalid = new AtomicLong();
+    private final AtomicLong escalatedEditRatio = new AtomicLong();
+    private final AtomicLong escalatedFailed = new AtomicLong();
+
+    /**
+     * @param fast fast tier backend, or null to send everything to strong
+     */
+    ModelRouter(LlmBackend fast, LlmBackend strong, LatencyRecorder latencies,
+                int maxFastChars, double maxPlaceholderDensity, double maxEditRatio) {
+        this.fast = fast;
+        this.strong = strong;
+        this.latencies = latencies;
+        this.maxFastChars = maxFastChars;
+        this.maxPlaceholderDensity = maxPlaceholderDensity;
+        this.maxEditRatio = maxEditRatio;
+    }
+
+    static ModelRouter fromSystemProperties() {
+        // One recorder across both tiers, so totals match what a single backend reported
+        LatencyRecorder latencies = new LatencyRecorder();
+        String url = System.getProperty("spellcheck.api.url", "http://localhost:11434");
+        String strongUrl = System.getProperty("spellcheck.api.url.strong", url);
+        String strongModel = System.getProperty("spellcheck.model.strong",
+                System.getProperty("spellcheck.model", "qwen2.5:3b"));
+        RetryPolicy strongRetry = RetryPolicy.fromSystemProperties(strongUrl);
+        LlmBackend strong = LlmBackend.fromSystemProperties(strongModel, strongUrl, latencies, strongRetry);
+
+        // One circuit breaker per server: tiers on the same server go down together, on different ones they don't
+        String fastModel = System.getProperty("spellcheck.model.fast");
+        LlmBackend fast = fastModel == null || fastModel.trim().isEmpty()
+                ? null : LlmBackend.fromSystemProperties(fastModel.trim(), url, latencies,
+                        url.equals(strongUrl) ? strongRetry : RetryPolicy.fromSystemProperties(url));
+
+        return new ModelRouter(fast, strong, latencies,
+                Integer.getInteger("spellcheck.route.maxFastChars", 600),
+                Double.parseDouble(System.getProperty("spellcheck.route.maxPlaceholderDensity", "0.2")),
+                Double.parseDouble(System.getProperty("spellcheck.route.maxEditRatio", "0.15")));
+    }
+
+    boolean isEnabled() {
+        return fast != null;
+    }
+
+    LlmBackend backend(Tier tier) {
+        return tier == Tier.FAST ? fast : strong;
+    }
+
+    LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * One policy per distinct server
+     */
+    List<RetryPolicy> getRetryPolicies() {
+        if (fast == null || fast.getRetryPolicy() == strong.getRetryPolicy()) {
+            return Collections.singletonList(strong.getRetryPolicy());
+        }
+        return Arrays.asList(fast.getRetryPolicy(), strong.getRetryPolicy());
+    }
+
+    void warmUp() {
+        if (fast != null) {
+            fast.warmUp();
+        }
+        strong.warmUp();
+    }
+
+    /**
+     * First tier for a masked paragraph
+     */
+    Tier route(String maskedText, int placeholderCount) {
+        if (fast == null || maskedText.length() > maxFastChars
+                || placeholderCount > maxPlaceholderDensity * countWords(maskedText)) {
+            routedStrong.incrementAndGet();
+            return Tier.STRONG;
+        }
+        routedFast.incrementAndGet();
+        return Tier.FAST;
+    }
+
+    /**
+     * Whether a fast-tier answer should be asked again of the strong tier: it failed
+     * validation, or it rewrote more of the paragraph than a copyedit should
+     */
+    boolean shouldEscalate(String maskedText, String response, PlaceholderValidator.Result result) {
+        if (result != PlaceholderValidator.Result.OK) {
+            escalatedInvalid.incrementAndGet();
+            return true;
+        }
+        if (ChangeRatioGuard.exceeds(maskedText, response, maxEditRatio)) {
+            escalatedEditRatio.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A fast-tier call failed and the paragraph is escalated to the strong tier
+     */
+    void fastFailed() {
+        escalatedFailed.incrementAndGet();
+    }
+
+    private static int countWords(String text) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            boolean letter = !Character.isWhitespace(text.charAt(i));
+            if (letter && !inWord) {
+                words++;
+            }
+            inWord = letter;
+        }
+        return words;
+    }
+
+    String summary() {
+        long total = routedFast.get() + routedStrong.get();
+        return String.format(Locale.ROOT,
+                "Routing: %d paragraphs, %d to %s first (%.0f%%), %d to %s; escalated %d invalid, %d large rewrites"
+                        + " and %d failed calls",
+                total, routedFast.get(), fast.getModel(), total == 0 ? 0.0 : 100.0 * routedFast.get() / total,
+                routedStrong.get(), strong.getModel(), escalatedInvalid.get(), escalatedEditRatio.get(),
+                escalatedFailed.get());
+    }
+}
@@ -0,0 +1,229 @@
+package Service;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-phase offline mode for large backlogs, so the inference server is kept busy
+ * by one saturating batch instead of paragraph-at-a-time calls from document workers.
+ *
+ *   export &lt;requests.jsonl&gt;                 mask every paragraph of the input folder, no backend calls
+ *   run    &lt;requests.jsonl&gt; &lt;results.jsonl&gt;  push the requests through the backend, appending results
+ *   apply  &lt;results.jsonl&gt;                  re-open the documents and apply the results, no backend calls
+ *
+ * Each request line holds an id (document#paragraph), the masked text and its
+ * placeholder table. run skips ids that already have a response, so an interrupted
+ * run can be resumed. apply re-derives every masked paragraph and only uses a result
+ * whose masked text still matches, so an edited document is never patched blindly.
+ * A result must also pass the placeholder and change-ratio checks an online answer does.
+ * Run concurrency is spellcheck.batch.concurrency, default 8.
+ */
+class OfflineBatch {
+
+    private static final int CONCURRENCY = Integer.getInteger("spellcheck.batch.concurrency", 8);
+
+    static void main(String[] args, Path input, Path output, int workers) {
+        try {
+            if (args.length == 2 && args[0].equals("export")) {
+                export(input, output, Paths.get(args[1]), workers);
+            } else if (args.length == 3 && args[0].equals("run")) {
+                run(Paths.get(args[1]), Paths.get(args[2]));
+            } else if (args.length == 2 && args[0].equals("apply")) {
+                apply(input, output, Paths.get(args[1]), workers);
+            } else {
+                System.err.println("Usage: export <requests.jsonl> | run <requests.jsonl> <results.jsonl> | apply <results.jsonl>");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void export(Path input, Path output, Path requestsFile, int workers) throws Exception {
+        AtomicLong exported = new AtomicLong();
+        try (Writer out = Files.newBufferedWriter(requestsFile, StandardCharsets.UTF_8)) {
+            new DocumentScheduler(input, output, false, SpellCheckProcessor.monitor()).run(workers, docxFile -> {
+                String relativeName = input.relativize(docxFile).toString();
+                try (InputStream in = Files.newInputStream(docxFile)) {
+                    XWPFDocument doc = new XWPFDocument(in);
+                    SpellCheckProcessor.normalizeQuotes(doc);
+                    StyleClassifier styles = SpellCheckProcessor.styleClassifier(SpellCheckProcessor.documentStyles(doc));
+                    List<XWPFParagraph> paragraphs = doc.getParagraphs();
+
+                    for (int i = 0; i < paragraphs.size(); i++) {
+                        SpellCheckProcessor.PreparedParagraph prepared =
+                                SpellCheckProcessor.prepareParagraph(paragraphs.get(i), styles);
+                        if (prepared == null) {
+                            continue;
+                        }
+                        JSONObject request = new JSONObject()
+                                .put("id", relativeName + "#" + i)
+                                .put("masked", prepared.maskedText())
+                                .put("placeholders", new JSONArray(prepared.placeholderTexts()));
+                        writeLine(out, request);
+                        exported.incrementAndGet();
+                    }
+                    System.out.println("Exported: " + relativeName);
+                } catch (Exception e) {
+                    System.err.println("Error exporting " + relativeName + ": " + e.getMessage());
+                }
+            });
+        }
+        System.out.println("Exported " + exported.get() + " paragraphs to " + requestsFile);
+    }
+
+    static void run(Path requestsFile, Path resultsFile) throws Exception {
+        Set<String> done = readResponses(resultsFile).keySet();
+        AtomicLong corrected = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        // Keeps only a few requests per thread in memory, however long the request file is
+        Semaphore window = new Semaphore(CONCURRENCY * 2);
+
+        try (BufferedReader in = Files.newBufferedReader(requestsFile, StandardCharsets.UTF_8);
+             Writer out = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject request = new JSONObject(line);
+                if (done.contains(request.getString("id"))) {
+                    continue;
+                }
+
+                window.acquire();
+                pool.execute(() -> {
+                    try {
+                        String masked = request.getString("masked");
+                        JSONObject result = new JSONObject().put("id", request.getString("id")).put("masked", masked);
+                        try {
+                            String response = SpellCheckProcessor.requestValidatedCorrection(
+                                    masked, request.getJSONArray("placeholders").length());
+                            if (response != null) {
+                                result.put("response", response);
+                            } else {
+                                result.put("error", "no response kept the placeholders intact");
+                            }
+                        } catch (IOException e) {
+                            result.put("error", e.getMessage());
+                        }
+                        (result.has("response") ? corrected : failed).incrementAndGet();
+                        writeLine(out, result);
+                    } catch (IOException e) {
+                        System.err.println("Could not write result: " + e.getMessage());
+                    } finally {
+                        window.release();
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.println("Batch run: " + corrected.get() + " corrected, " + failed.get() + " failed, "
+                + done.size() + " already done");
+        System.out.println("LLM latency: " + SpellCheckProcessor.llmLatencies().snapshot().summary());
+    }
+
+    static void apply(Path input, Path output, Path resultsFile, int workers) throws Exception {
+        Map<String, JSONObject> results = readResponses(resultsFile);
+        AtomicLong applied = new AtomicLong();
+        AtomicLong stale = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+
+        new DocumentScheduler(input, output, false, SpellCheckProcessor.monitor()).run(workers, docxFile -> {
+            String relativeName = input.relativize(docxFile).toString();
+            try {
+                byte[] source = Files.readAllBytes(docxFile);
+                XWPFDocument doc = new XWPFDocument(new ByteArrayInputStream(source));
+                SpellCheckProcessor.normalizeQuotes(doc);
+                StyleClassifier styles = SpellCheckProcessor.styleClassifier(SpellCheckProcessor.documentStyles(doc));
+                List<XWPFParagraph> paragraphs = doc.getParagraphs();
+
+                for (int i = 0; i < paragraphs.size(); i++) {
+                    // Every paragraph is prepared, as online, so it gets its (SUP)/(SUB) markers with or without a result
+                    SpellCheckProcessor.PreparedParagraph prepared =
+                            SpellCheckProcessor.prepareParagraph(paragraphs.get(i), styles);
+                    JSONObject result = results.get(relativeName + "#" + i);
+                    if (result == null) {
+                        continue;
+                    }
+                    if (prepared == null || !prepared.maskedText().equals(result.getString("masked"))) {
+                        // The document changed since export; this paragraph stays as it is
+                        stale.incrementAndGet();
+                        continue;
+                    }
+                    String response = result.getString("response");
+                    if (!SpellCheckProcessor.acceptResponse(response, prepared.maskedText(), prepared.placeholderCount())) {
+                        rejected.incrementAndGet();
+                        continue;
+                    }
+                    SpellCheckProcessor.applyCorrection(prepared, response);
+                    applied.incrementAndGet();
+                }
+
+                String correctedFileName = SpellCheckProcessor.writeToFile(doc, source, relativeName);
+                System.out.println("Applied: " + relativeName + " → " + correctedFileName);
+                Files.move(docxFile, output.resolve(relativeName), StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception e) {
+                System.err.println("Error applying " + relativeName + ": " + e.getMessage());
+            }
+        });
+        System.out.println("Applied " + applied.get() + " corrections, " + stale.get() + " stale results skipped, "
+                + rejected.get() + " rejected");
+    }
+
+    // Results that carry a response, by id; later lines win, so a resumed run's retries count
+    private static Map<String, JSONObject> readResponses(Path resultsFile) throws IOException {
+        Map<String, JSONObject> responses = new HashMap<>();
+        if (!Files.exists(resultsFile)) {
+            return responses;
+        }
+        try (BufferedReader in = Files.newBufferedReader(resultsFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    JSONObject result = new JSONObject(line);
+                    if (result.has("response")) {
+                        responses.put(result.getString("id"), result);
+                    }
+                }
+            }
+        }
+        return responses;
+    }
+
+    private static void writeLine(Writer out, JSONObject line) throws IOException {
+        synchronized (out) {
+            out.write(line.toString());
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks an LLM response against the placeholders of the masked text it was given.
+ * Every placeholder must come back exactly once, in the original order, and no
+ * unknown ones may appear. The response is scanned once; failures are cheap to
+ * detect, long before compareTexts and the paragraph rebuild run.
+ */
+class PlaceholderValidator {
+
+    enum Result {
+        OK,
+        NO_CORRECTION,  // Backend returned nothing usable
+        MISSING,        // A placeholder was dropped
+        DUPLICATED,     // A placeholder appears more than once
+        REORDERED,      // All present, but not in the original order
+        UNKNOWN         // A placeholder index that was never handed out
+    }
+
+    static final char PLACEHOLDER_START = '«';
+    static final char PLACEHOLDER_END = '»';
+
+    private final Map<Result, AtomicLong> rejections = new EnumMap<>(Result.class);
+
+    PlaceholderValidator() {
+        for (Result result : Result.values()) {
+            if (result != Result.OK) {
+                rejections.put(result, new AtomicLong());
+            }
+        }
+    }
+
+    /**
+     * @param response         corrected masked text from the backend
+     * @param maskedInput      the masked text that was sent
+     * @param placeholderCount size of the placeholder table
+     */
+    Result validate(String response, String maskedInput, int placeholderCount) {
+        Result result = check(response, maskedInput, placeholderCount);
+        if (result != Result.OK) {
+            rejections.get(result).incrementAndGet();
+        }
+        return result;
+    }
+
+    private static Result check(String response, String maskedInput, int placeholderCount) {
+        if (response == null || response.equals(LlmBackend.NO_CORRECTION)
+                || (response.trim().isEmpty() && !maskedInput.trim().isEmpty())) {
+            return Result.NO_CORRECTION;
+        }
+
+        int[] expected = new int[placeholderCount];
+        int expectedCount = scan(maskedInput, expected, placeholderCount);
+        if (expectedCount < 0) {
+            // The source text itself carried something placeholder-like; nothing to compare against
+            return Result.OK;
+        }
+
+        boolean[] seen = new boolean[placeholderCount];
+        boolean inOrder = true;
+        int found = 0;
+        int i = response.indexOf(PLACEHOLDER_START);
+
+        while (i != -1) {
+            int index = placeholderIndex(response, i);
+            if (index != -1) {
+                if (index >= placeholderCount) {
+                    return Result.UNKNOWN;
+                }
+                if (seen[index]) {
+                    return Result.DUPLICATED;
+                }
+                seen[index] = true;
+                if (found >= expectedCount || expected[found] != index) {
+                    inOrder = false;
+                }
+                found++;
+            }
+            i = response.indexOf(PLACEHOLDER_START, i + 1);
+        }
+
+        if (found < expectedCount) {
+            return Result.MISSING;
+        }
+        return inOrder ? Result.OK : Result.REORDERED;
+    }
+
+    // Fills order with the placeholder indexes as they appear in text; -1 if the text is inconsistent
+    private static int scan(String text, int[] order, int placeholderCount) {
+        int count = 0;
+        int i = text.indexOf(PLACEHOLDER_START);
+        while (i != -1) {
+            int index = placeholderIndex(text, i);
+            if (index != -1) {
+                if (index >= placeholderCount || count >= order.length) {
+                    return -1;
+                }
+                order[count++] = index;
+            }
+            i = text.indexOf(PLACEHOLDER_START, i + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Index of the placeholder «KIND_N» starting at start, or -1 if there is none.
+     * A lone guillemet in the text is not a placeholder.
+     */
+    static int placeholderIndex(String text, int start) {
+        int i = start + 1;
+        int kindStart = i;
+        while (i < text.length() && text.charAt(i) >= 'A' && text.charAt(i) <= 'Z') {
+            i++;
+        }
+        if (i == kindStart || i >= text.length() || text.charAt(i) != '_') {
+            return -1;
+        }
+        int digitsStart = ++i;
+        int value = 0;
+        while (i < text.length() && i - digitsStart < 9 && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            value = value * 10 + (text.charAt(i) - '0');
+            i++;
+        }
+        return i > digitsStart && i < text.length() && text.charAt(i) == PLACEHOLDER_END ? value : -1;
+    }
+
+    long getRejected() {
+        long total = 0;
+        for (AtomicLong count : rejections.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    String summary() {
+        StringBuilder sb = new StringBuilder("Placeholder validation rejected ").append(getRejected()).append(" responses");
+        String separator = " (";
+        for (Map.Entry<Result, AtomicLong> entry : rejections.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                sb.append(separator).append(entry.getKey()).append('=').append(entry.getValue().get());
+                separator = ", ";
+            }
+        }
+        return separator.equals(", ") ? sb.append(')').toString() : sb.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package Service;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces spans the model must not touch (DOIs, URLs, citations, quantities,
+ * chemical formulas, equations) with compact placeholders such as «URL_3». The
+ * enabled classes are compiled into one alternation, and each stretch of text is
+ * scanned once, left to right; at any position the first class in enum order wins.
+ * The matcher is only started where some class can begin (a bracket, a URL scheme
+ * or the start of a word, looked up in a table), never inside a word.
+ * Restoring goes through the same placeholder table as superscripts and subscripts.
+ *
+ * Configured through spellcheck.mask.spans: a comma-separated list of classes,
+ * "all", or "none" (the default, which masks superscripts and subscripts only,
+ * as before span masking existed).
+ */
+class ProtectedSpanMasker {
+
+    enum SpanClass {
+        URL("URL", "(?:https?://|www\\.)[^\\s«»]*[^\\s«».,;:!?)\\]'\"”’]"),
+        DOI("DOI", "\\b10\\.\\d{4,9}/[^\\s«»]*[^\\s«».,;:!?)\\]'\"”’]"),
+        // [12], [3, 4], [5–9] and (Smith et al., 2019; Jones and Brown 2020a)
+        CITATION("CIT", "\\[\\d+(?:\\s?[,–-]\\s?\\d+)*\\]"
+                + "|\\((?:[A-Z][\\p{L}'-]+(?: et al\\.| (?:and|&) [A-Z][\\p{L}'-]+)?,? \\d{4}[a-z]?(?:; )?)+\\)"),
+        // Short operands around a relation, e.g. x = 2y + 3 or p ≤ 0.05
+        EQUATION("EQ", "(?<![\\p{L}\\d])" + operand() + "(?: ?[+\\-−×÷*/] ?" + operand() + ")*"
+                + " ?[=≠≈≤≥] ?" + operand() + "(?: ?[+\\-−×÷*/] ?" + operand() + ")*(?![\\p{L}\\d])"),
+        // Units that read as prose ("Figure 3 A", "the 1990s") are left out or need a space
+        NUMBER_UNIT("NUM", "(?<![\\p{L}\\d.])\\d+(?:[.,]\\d+)?(?:\\s?[×x]\\s?10\\^?-?\\d+)?"
+                + "(?:\\s?(?:mg|µg|μg|ng|kg|g|mL|ml|µL|μL|L|nm|µm|μm|mm|cm|km|m|ms|min|h|kHz|MHz|GHz|Hz"
+                + "|mmol|µmol|μmol|mol|mM|µM|μM|nM|kDa|Da|bp|kb|°C|°F|mV|V|mA|kW|W|kJ|J|kcal|kPa|MPa|Pa|bar|rpm|%)|\\ss)"
+                + "(?![\\p{L}\\d])"),
+        // Element symbols with at least one count, e.g. CO2, H2SO4, C6H12O6
+        CHEMICAL("CHEM", "\\b(?=[A-Za-z]*\\d)(?:[A-Z][a-z]?\\d{0,3}){2,}\\b");
+
+        final String kind;
+        final String regex;
+
+        SpanClass(String kind, String regex) {
+            this.kind = kind;
+            this.regex = regex;
+        }
+
+        // A short symbol or number, optionally applied to one short argument as in f(x);
+        // a full stop only counts inside a decimal. Brackets of the surrounding prose never match.
+        private static String operand() {
+            return "[\\p{L}\\d^_]{1,6}(?:\\.\\d{1,4})?(?:\\([\\p{L}\\d^_]{1,6}\\))?";
+        }
+    }
+
+    /** Receives each masked span and returns the index of its placeholder */
+    interface PlaceholderSink {
+        int add(String kind, String original);
+    }
+
+    private final List<SpanClass> classes;
+    private final Pattern pattern;
+    // ASCII characters an enabled class can start a word with; EQUATION also starts on any
+    // letter, but only in a stretch that has a relation sign for it to match
+    private final boolean[] wordStart = new boolean[128];
+    private final boolean[] wordStartWithoutEquation = new boolean[128];
+    private final boolean equationStart;
+    private final boolean bracketStart;
+    private final boolean urlStart;
+    private final AtomicLong spans = new AtomicLong();
+    private final AtomicLong charsSaved = new AtomicLong();
+
+    ProtectedSpanMasker(Set<SpanClass> enabled) {
+        classes = new ArrayList<>(enabled);
+        StringBuilder regex = new StringBuilder();
+        for (SpanClass spanClass : classes) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?<").append(spanClass.kind).append('>').append(spanClass.regex).append(')');
+        }
+        pattern = classes.isEmpty() ? null : Pattern.compile(regex.toString());
+
+        for (char c = 0; c < 128; c++) {
+            boolean digit = c >= '0' && c <= '9';
+            boolean upper = c >= 'A' && c <= 'Z';
+            boolean letter = upper || (c >= 'a' && c <= 'z');
+            wordStartWithoutEquation[c] = enabled.contains(SpanClass.NUMBER_UNIT) && digit
+                    || enabled.contains(SpanClass.CHEMICAL) && upper
+                    || enabled.contains(SpanClass.DOI) && c == '1';
+            wordStart[c] = wordStartWithoutEquation[c]
+                    || enabled.contains(SpanClass.EQUATION) && (letter || digit || c == '^' || c == '_');
+        }
+        equationStart = enabled.contains(SpanClass.EQUATION);
+        bracketStart = enabled.contains(SpanClass.CITATION);
+        urlStart = enabled.contains(SpanClass.URL);
+    }
+
+    static ProtectedSpanMasker fromSystemProperties() {
+        String setting = System.getProperty("spellcheck.mask.spans", "none").trim();
+        Set<SpanClass> enabled = EnumSet.noneOf(SpanClass.class);
+        if (setting.equalsIgnoreCase("all")) {
+            enabled = EnumSet.allOf(SpanClass.class);
+        } else if (!setting.equalsIgnoreCase("none")) {
+            for (String name : setting.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    enabled.add(SpanClass.valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_')));
+                }
+            }
+        }
+        return new ProtectedSpanMasker(enabled);
+    }
+
+    boolean isEnabled() {
+        return pattern != null;
+    }
+
+    static String placeholder(String kind, int index) {
+        return "«" + kind + "_" + index + "»";
+    }
+
+    /**
+     * Mask every protected span in text. Existing placeholders are left as they are
+     * and never become part of a span.
+     */
+    String mask(String text, PlaceholderSink sink) {
+        if (pattern == null) {
+            return text;
+        }
+        StringBuilder result = null;
+        int copied = 0;
+        int stretchStart = 0;
+
+        while (stretchStart < text.length()) {
+            int open = nextPlaceholder(text, stretchStart);
+            int stretchEnd = open == -1 ? text.length() : open;
+
+            // Transparent bounds let the lookbehinds see the previous character, which at
+            // the start of a stretch is the end of a placeholder and blocks nothing
+            Matcher matcher = pattern.matcher(text).useTransparentBounds(true);
+            boolean equations = equationStart && hasRelation(text, stretchStart, stretchEnd);
+            int i = stretchStart;
+            while (i < stretchEnd) {
+                if (!mayStartAt(text, i, equations) || !matcher.region(i, stretchEnd).lookingAt()) {
+                    i++;
+                    continue;
+                }
+                if (result == null) {
+                    result = new StringBuilder(text.length());
+                }
+                String kind = kindOf(matcher);
+                String original = matcher.group();
+                String token = placeholder(kind, sink.add(kind, original));
+                result.append(text, copied, matcher.start()).append(token);
+                copied = matcher.end();
+                i = matcher.end();
+                spans.incrementAndGet();
+                charsSaved.addAndGet(original.length() - token.length());
+            }
+
+            if (open == -1) {
+                break;
+            }
+            int close = text.indexOf('»', open);
+            stretchStart = close == -1 ? text.length() : close + 1;
+        }
+
+        if (result == null) {
+            return text;
+        }
+        return result.append(text, copied, text.length()).toString();
+    }
+
+    /**
+     * Whether an enabled class could match from i. Never stricter than the regex: all
+     * classes but URL and CITATION refuse to start right after a letter or digit.
+     */
+    private boolean mayStartAt(String text, int i, boolean equations) {
+        char c = text.charAt(i);
+        if (bracketStart && (c == '[' || c == '(')) {
+            return true;
+        }
+        if (urlStart && (text.startsWith("http", i) || text.startsWith("www.", i))) {
+            return true;
+        }
+        // One char, like the lookbehinds, so a letter outside the BMP does not count
+        if (i > 0) {
+            char previous = text.charAt(i - 1);
+            if (Character.isLetter(previous) || (previous >= '0' && previous <= '9')) {
+                return false;
+            }
+        }
+        int cp = text.codePointAt(i);
+        if (cp < 128) {
+            return (equations ? wordStart : wordStartWithoutEquation)[cp];
+        }
+        return equations && Character.isLetter(cp);
+    }
+
+    private static boolean hasRelation(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '=' || c == '≠' || c == '≈' || c == '≤' || c == '≥') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Guillemets used as quotation marks are ordinary text
+    private static int nextPlaceholder(String text, int from) {
+        int open = text.indexOf('«', from);
+        while (open != -1 && PlaceholderValidator.placeholderIndex(text, open) == -1) {
+            open = text.indexOf('«', open + 1);
+        }
+        return open;
+    }
+
+    private String kindOf(Matcher matcher) {
+        for (SpanClass spanClass : classes) {
+            if (matcher.start(spanClass.kind) != -1) {
+                return spanClass.kind;
+            }
+        }
+        throw new IllegalStateException("Match without a span class");
+    }
+
+    String summary() {
+        return "Masked " + spans.get() + " protected spans, " + charsSaved.get() + " characters kept out of prompts";
+    }
+
+    long getSpans() {
+        return spans.get();
+    }
+}
@@ -0,0 +1,131 @@
+package Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries transient backend failures (connection errors, timeouts, HTTP 408, 429
+ * and 5xx) with full-jitter exponential backoff: before retry n the caller sleeps
+ * a random time up to min(maxDelay, baseDelay * 2^n), so workers that failed
+ * together do not retry together. Every attempt first passes the circuit breaker.
+ * Other HTTP errors are the request's fault and are not retried. Each backend server
+ * has its own policy and breaker, so one server going down does not stop the other.
+ *
+ * Configured through system properties:
+ *   spellcheck.retry.attempts        retries after the first attempt, default 3
+ *   spellcheck.retry.baseMillis      default 500
+ *   spellcheck.retry.maxMillis       default 10000
+ *   spellcheck.breaker.failures      consecutive failures that open the circuit, default 5
+ *   spellcheck.breaker.openSeconds   pause before a probe request, default 30
+ *   spellcheck.breaker.maxWaitSeconds  longest a call waits on an open circuit, default 600
+ */
+class RetryPolicy {
+
+    private final String server;
+    private final int retries;
+    private final long baseMillis;
+    private final long maxMillis;
+    private final CircuitBreaker breaker;
+
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    RetryPolicy(String server, int retries, long baseMillis, long maxMillis, CircuitBreaker breaker) {
+        this.server = server;
+        this.retries = Math.max(0, retries);
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+        this.breaker = breaker;
+    }
+
+    /**
+     * Policy and breaker for calls to one server
+     */
+    static RetryPolicy fromSystemProperties(String server) {
+        CircuitBreaker breaker = new CircuitBreaker(
+                Integer.getInteger("spellcheck.breaker.failures", 5),
+                Long.getLong("spellcheck.breaker.openSeconds", 30L) * 1000,
+                Long.getLong("spellcheck.breaker.maxWaitSeconds", 600L) * 1000);
+        return new RetryPolicy(server,
+                Integer.getInteger("spellcheck.retry.attempts", 3),
+                Long.getLong("spellcheck.retry.baseMillis", 500L),
+                Long.getLong("spellcheck.retry.maxMillis", 10_000L),
+                breaker);
+    }
+
+    <V> V call(SingleFlight.Call<V> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            breaker.acquire();
+            try {
+                V result = call.call();
+                breaker.recordSuccess();
+                return result;
+            } catch (IOException e) {
+                // A socket timeout is an InterruptedIOException too, so ask the thread
+                if (Thread.currentThread().isInterrupted() || !isTransient(e)) {
+                    breaker.recordSuccess();
+                    throw e;
+                }
+                breaker.recordFailure();
+                if (attempt >= retries) {
+                    exhausted.incrementAndGet();
+                    if (breaker.isOpen()) {
+                        throw new CircuitBreaker.BackendUnavailableException("Backend unavailable: " + e.getMessage(), e);
+                    }
+                    throw e;
+                }
+                retried.incrementAndGet();
+                sleep(backoffMillis(attempt));
+            } catch (RuntimeException | Error e) {
+                // The backend answered and the bug is ours; a half-open probe must still be released
+                breaker.recordSuccess();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Only failures that may go away on their own; a malformed answer or a bad URL
+     * would fail the same way again and must not count against the circuit
+     */
+    static boolean isTransient(IOException e) {
+        if (e instanceof LlmBackend.HttpStatusException) {
+            int status = ((LlmBackend.HttpStatusException) e).getStatus();
+            return status == 408 || status == 429 || status >= 500;
+        }
+        // Refused or reset connections (ConnectException is a SocketException) and timeouts
+        return e instanceof SocketException || e instanceof SocketTimeoutException;
+    }
+
+    private long backoffMillis(int attempt) {
+        long ceiling = attempt >= 30 ? maxMillis : Math.min(maxMillis, baseMillis << attempt);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during retry backoff");
+        }
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    long getExhausted() {
+        return exhausted.get();
+    }
+
+    String summary() {
+        return "Backend retries for " + server + ": " + retried.get() + " retried, " + exhausted.get() + " calls failed after "
+                + (retries + 1) + " attempts; circuit opened " + breaker.getOpened() + " times, callers waited "
+                + breaker.getWaitedMillis() / 1000 + " s";
+    }
+}
@@ -0,0 +1,73 @@
+package Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the call,
+ * everyone who arrives while it is in flight waits for and shares its result.
+ * Nothing is cached once the call completes.
+ */
+class SingleFlight<K, V> {
+
+    interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    V execute(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+
+        executed.incrementAndGet();
+        try {
+            V result = call.call();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // Wrap so each waiter gets its own stack trace
+            throw new IOException("Coalesced request failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    long getExecuted() {
+        return executed.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+}
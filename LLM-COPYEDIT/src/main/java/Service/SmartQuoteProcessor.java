@@ -1,21 +1,62 @@
 package Service;
 
 
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class SmartQuoteProcessor {
 
+    // Factory lookup is the expensive part; builders and transformers are then reused per thread
+    private static final DocumentBuilderFactory BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+    private static final Pattern CANT = Pattern.compile("(?i)can't");
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+
+    static {
+        BUILDER_FACTORY.setNamespaceAware(true);
+    }
+
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = ThreadLocal.withInitial(() -> {
+        try {
+            return BUILDER_FACTORY.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<Transformer> TRANSFORMERS = ThreadLocal.withInitial(() -> {
+        try {
+            Transformer transformer = TRANSFORMER_FACTORY.newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            return transformer;
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     public void process(String inputFilePath, String outputFilePath) throws Exception {
         // Load and parse the XML file
         File inputFile = new File(inputFilePath);
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        dbFactory.setNamespaceAware(true);
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        DocumentBuilder dBuilder = BUILDERS.get();
+        dBuilder.reset();
         Document doc = dBuilder.parse(inputFile);
         doc.getDocumentElement().normalize();
 
@@ -43,9 +84,7 @@ public class SmartQuoteProcessor {
         }
 
         // Save result to specified output file
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        Transformer transformer = TRANSFORMERS.get();
         DOMSource source = new DOMSource(doc);
         StreamResult result = new StreamResult(outputFile);
         transformer.transform(source, result);
@@ -53,12 +92,35 @@ public class SmartQuoteProcessor {
         System.out.println("File saved as: " + outputFilePath);
     }
 
+    /**
+     * Apply smartQuotesExceptCant to every w:t under root, one text node at a time like
+     * process() does. Lets a document already open in POI be normalized without a second
+     * parse. Returns the number of text nodes changed.
+     */
+    public static int normalizeQuotes(XmlObject root) {
+        int changed = 0;
+        for (XmlObject text : root.selectPath("declare namespace w='" + W_NS + "' .//w:t")) {
+            XmlCursor cursor = text.newCursor();
+            try {
+                String value = cursor.getTextValue();
+                String quoted = smartQuotesExceptCant(value);
+                if (!quoted.equals(value)) {
+                    cursor.setTextValue(quoted);
+                    changed++;
+                }
+            } finally {
+                cursor.dispose();
+            }
+        }
+        return changed;
+    }
+
     // Only replace quotes, preserve "can't"
     public static String smartQuotesExceptCant(String text) {
         if (text == null) return null;
         String placeholder = "__CANT_SMARTQUOTE_PLACEHOLDER__";
         // Protect all "can't" (case-insensitive)
-        text = text.replaceAll("(?i)can't", placeholder);
+        text = CANT.matcher(text).replaceAll(placeholder);
 
         StringBuilder sb = new StringBuilder();
         boolean doubleOpen = true;
@@ -100,11 +162,54 @@ public class SmartQuoteProcessor {
     }
 
 
+    /**
+     * Process every .xml file under inputDir in parallel, mirroring subfolders in outputDir.
+     * Returns the number of files that failed.
+     */
+    public int processFolder(Path inputDir, Path outputDir, int threads) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(inputDir)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".xml"))
+                    .collect(Collectors.toList());
+        }
+
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (Path file : files) {
+                Path target = outputDir.resolve(inputDir.relativize(file));
+                executor.submit(() -> {
+                    try {
+                        process(file.toString(), target.toString());
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.err.println("Error processing " + file + ": " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+
+        System.out.println("Processed " + (files.size() - failed.get()) + " of " + files.size() + " XML files");
+        return failed.get();
+    }
+
     // Example usage:
+    //   SmartQuoteProcessor <input.xml> <output.xml>
+    //   SmartQuoteProcessor <inputFolder> <outputFolder>   (threads: -Dsmartquote.threads, default one per core)
     public static void main(String[] args) throws Exception {
         // Input your source file location and output file location:
-        String inputFile = "C:\\Users\\Admin\\Downloads\\T_ECS1390156_CLN.xml";
-        String outputFile = "D:\\CLN OUT\\output.xml";
-        new SmartQuoteProcessor().process(inputFile, outputFile);
+        String inputFile = args.length >= 2 ? args[0] : "C:\\Users\\Admin\\Downloads\\T_ECS1390156_CLN.xml";
+        String outputFile = args.length >= 2 ? args[1] : "D:\\CLN OUT\\output.xml";
+
+        if (Files.isDirectory(Paths.get(inputFile))) {
+            int threads = Integer.getInteger("smartquote.threads", Runtime.getRuntime().availableProcessors());
+            new SmartQuoteProcessor().processFolder(Paths.get(inputFile), Paths.get(outputFile), threads);
+        } else {
+            new SmartQuoteProcessor().process(inputFile, outputFile);
+        }
     }
 }
@@ -1,32 +1,74 @@
 package Service;
 
+import org.apache.poi.ooxml.POIXMLTypeLoader;
 import org.apache.poi.xwpf.usermodel.*;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlOptions;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTDocument1;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTR;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTRPr;
-import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTString;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTStyles;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.STVerticalAlignRun;
 
+import javax.xml.namespace.QName;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
 
 public class SpellCheckProcessor {
 
-    private static final String API_URL = "http://localhost:11434/v1/chat/completions";
     private static final Set<String> STYLES_TO_SKIP = Set.of("CL", "AU", "EH", "TY", "DOI", "LRH", "RRH", "AF", "AT",
             "AS", "ABKWH", "ABKW", "H1", "cit", "AQ", "H2", "AN", "author", "adate", "atl", "stl", "vol", "iss", "first-page",
             "last-page", "REF", "org", "btl", "city", "pub", "aulabel", "Hyperlink", "CP", "H3", "DR", "Front matter",
             "OQ", "QS", "H4", "H5", "EX", "DI", "PO", "EQ", "EN", "NNUM", "CPB", "TCH", "TT", "TNL", "TBL", "CPSO");
-    private static final String INPUT_FOLDER = "D:/before";
-    private static final String OUTPUT_FOLDER = "D:/after";
+    private static final QName W_R = new QName("http://schemas.openxmlformats.org/wordprocessingml/2006/main", "r");
+    private static final Field PARAGRAPH_RUNS = paragraphField("runs");
+    private static final Field PARAGRAPH_IRUNS = paragraphField("iruns");
+    private static final String INPUT_FOLDER = System.getProperty("spellcheck.input", "D:/before");
+    private static final String OUTPUT_FOLDER = System.getProperty("spellcheck.output", "D:/after");
+    // Both prompts share the role, scope and rules; only the task and the answer format differ
+    private static final String PROMPT_ROLE = "You are an expert copy editor. Your task is to review the provided text and ";
+    private static final String PROMPT_SCOPE = " ONLY fix grammatical errors, spelling mistakes, punctuation issues, and incorrect word usage in the main body text. DO NOT enhance, rewrite, or improve the sentence in any way.\n\n"
+            + "CRITICAL RULES:\n"
+            + "- STRICTLY retain all existing quotes exactly as they are (straight or curved).\n"
+            + "- STRICTLY retain all brackets exactly as they are.\n"
+            + "- NEVER modify any placeholder text in the format «KIND_N», such as «SUPSUB_0» or «URL_1». These represent superscripts/subscripts, links, DOIs, citations, quantities, formulas and equations that must remain exactly as is.\n"
+            + "- Do not alter the original tone, style, structure, or formatting intent.\n"
+            + "- Do not include any explanations, comments, or additional notes.";
+    private static final String SYSTEM_PROMPT = PROMPT_ROLE + "return the corrected version of the text." + PROMPT_SCOPE
+            + " Return ONLY the corrected text.";
+    private static final String EDITS_PROMPT = PROMPT_ROLE + "list the corrections it needs." + PROMPT_SCOPE
+            + EditListFormat.PROMPT_RULES;
+    private static final EditListFormat EDIT_LIST = EditListFormat.isEnabledBySystemProperties() ? new EditListFormat() : null;
+    private static final ModelRouter ROUTER = ModelRouter.fromSystemProperties();
+    // Files at least this large are streamed paragraph by paragraph instead of loaded whole
+    private static final long STREAMING_MIN_BYTES = Long.getLong("spellcheck.streaming.minBytes", Long.MAX_VALUE);
+    private static final int PLACEHOLDER_RETRIES = Integer.getInteger("spellcheck.placeholder.retries", 1);
+    private static final PlaceholderValidator VALIDATOR = new PlaceholderValidator();
+    private static final ChangeRatioGuard CHANGE_GUARD = ChangeRatioGuard.fromSystemProperties();
+    // "patch" edits only the runs a correction touches, "full" recreates every run of the paragraph
+    private static final boolean PATCH_RUNS = "patch".equalsIgnoreCase(System.getProperty("spellcheck.rebuild.mode", "full"));
+    private static final int WORKERS = Integer.getInteger("spellcheck.workers", 1);
+    // Mark up a changed short word letter by letter instead of striking the whole word
+    private static final boolean CHARACTER_DIFF = Boolean.getBoolean("spellcheck.diff.characters");
+    // Curl straight quotes in all body text while the document is open, before the LLM pass
+    static final boolean SMART_QUOTES = Boolean.getBoolean("spellcheck.smartQuotes");
+    private static final ProtectedSpanMasker SPAN_MASKER = ProtectedSpanMasker.fromSystemProperties();
+    private static final DictionaryPreFilter PRE_FILTER = DictionaryPreFilter.fromSystemProperties();
+    // Identical masked text + prompt sent concurrently shares one backend call
+    private static final SingleFlight<String, String> IN_FLIGHT = new SingleFlight<>();
+    private static final CopyeditMonitor MONITOR = new CopyeditMonitor(ROUTER.getLatencies(), IN_FLIGHT);
+    private static final TraceRecorder TRACE = TraceRecorder.get();
+    // "flag" leaves a paragraph whose backend calls all failed unchanged and highlighted; "fail" fails the document.
+    // An outage, where the circuit breaker gave up waiting, fails the document either way.
+    private static final boolean FLAG_FAILED_PARAGRAPHS =
+            !"fail".equalsIgnoreCase(System.getProperty("spellcheck.onBackendFailure", "flag").trim());
+    private static final AtomicLong FLAGGED_PARAGRAPHS = new AtomicLong();
 
     // Helper class to hold masked text and placeholders
     private static class TextWithPlaceholders {
@@ -39,18 +81,27 @@ public class SpellCheckProcessor {
         }
     }
 
-    // Store both the original text and its type (superscript/subscript)
+    // Store both the original text and its type (superscript/subscript, or a protected span kind)
     private static class PlaceholderInfo {
+        static final String SUPSUB = "SUPSUB";
+
         final String originalText;
         final boolean isSuperscript;
         final boolean isSubscript;
         final RunFormatting formatting;
+        final String kind;
 
         PlaceholderInfo(String originalText, boolean isSuperscript, boolean isSubscript, RunFormatting formatting) {
+            this(originalText, isSuperscript, isSubscript, formatting, SUPSUB);
+        }
+
+        PlaceholderInfo(String originalText, boolean isSuperscript, boolean isSubscript, RunFormatting formatting,
+                        String kind) {
             this.originalText = originalText;
             this.isSuperscript = isSuperscript;
             this.isSubscript = isSubscript;
             this.formatting = formatting;
+            this.kind = kind;
         }
     }
 
@@ -147,6 +198,15 @@ public class SpellCheckProcessor {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("serve")) {
+            CopyeditServer.main();
+            return;
+        }
+        if (args.length > 0) {
+            // export / run / apply: the two-phase offline batch mode
+            OfflineBatch.main(args, Paths.get(INPUT_FOLDER), Paths.get(OUTPUT_FOLDER), WORKERS);
+            return;
+        }
         processFolder();
     }
 
@@ -165,133 +225,505 @@ public class SpellCheckProcessor {
                 System.out.println("Created output directory: " + OUTPUT_FOLDER);
             }
 
-            List<Path> docxFiles = Files.list(inputPath)
-                    .filter(path -> path.toString().toLowerCase().endsWith(".docx"))
-                    .collect(Collectors.toList());
+            // Warm up while the scheduler is still walking the tree
+            ROUTER.warmUp();
 
-            if (docxFiles.isEmpty()) {
+            FileLeaseCoordinator leases = FileLeaseCoordinator.fromSystemProperties();
+            MONITOR.register();
+            DocumentScheduler scheduler = new DocumentScheduler(inputPath, outputPath, leases != null, MONITOR);
+            int documents;
+            try {
+                documents = scheduler.run(WORKERS, docxFile -> {
+                    if (leases == null) {
+                        processFile(docxFile, inputPath.relativize(docxFile).toString(), null);
+                    } else {
+                        processLeased(leases, inputPath, docxFile);
+                    }
+                });
+            } finally {
+                if (leases != null) {
+                    leases.shutdown();
+                    System.out.println(leases.summary());
+                }
+            }
+            if (documents == 0) {
                 System.out.println("No DOCX files found in " + INPUT_FOLDER);
                 return;
             }
 
-            for (Path docxFile : docxFiles) {
-                try (InputStream inputStream = Files.newInputStream(docxFile)) {
-                    String correctedFileName = readAndProcessDocxFile(inputStream, docxFile.getFileName().toString());
-                    System.out.println("Processed: " + docxFile.getFileName() + " → " + correctedFileName);
-
-                    // Move original to output folder
-                    Path destinationPath = Paths.get(OUTPUT_FOLDER, docxFile.getFileName().toString());
-                    Files.move(docxFile, destinationPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                    System.out.println("Moved original file to: " + destinationPath);
-                } catch (Exception e) {
-                    System.err.println("Error processing " + docxFile.getFileName() + ": " + e.getMessage());
-                    e.printStackTrace();
+            if (MONITOR.getDocumentsDrained() > 0) {
+                System.out.println("Drained: " + MONITOR.getDocumentsDrained() + " documents left in " + INPUT_FOLDER);
+            }
+            if (PRE_FILTER.isEnabled()) {
+                System.out.println(PRE_FILTER.summary());
+            }
+            if (IN_FLIGHT.getCoalesced() > 0) {
+                System.out.println("Coalesced " + IN_FLIGHT.getCoalesced() + " duplicate in-flight LLM requests");
+            }
+            if (SPAN_MASKER.getSpans() > 0) {
+                System.out.println(SPAN_MASKER.summary());
+            }
+            if (EDIT_LIST != null) {
+                System.out.println(EDIT_LIST.summary());
+            }
+            if (VALIDATOR.getRejected() > 0) {
+                System.out.println(VALIDATOR.summary());
+            }
+            for (RetryPolicy retry : ROUTER.getRetryPolicies()) {
+                if (retry.getRetried() > 0 || retry.getExhausted() > 0) {
+                    System.out.println(retry.summary());
                 }
             }
+            if (FLAGGED_PARAGRAPHS.get() > 0) {
+                System.out.println("Flagged " + FLAGGED_PARAGRAPHS.get()
+                        + " paragraphs left unchanged after backend failures (highlighted)");
+            }
+            if (CHANGE_GUARD.getRejected() > 0) {
+                System.out.println(CHANGE_GUARD.summary());
+            }
+            if (ROUTER.isEnabled()) {
+                System.out.println(ROUTER.summary());
+            }
+            System.out.println("LLM latency: " + ROUTER.getLatencies().snapshot().summary());
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public static String readAndProcessDocxFile(InputStream inputStream, String originalFileName) throws Exception {
-        XWPFDocument doc = new XWPFDocument(inputStream);
+    static CopyeditMonitor monitor() {
+        return MONITOR;
+    }
 
-        for (XWPFParagraph paragraph : doc.getParagraphs()) {
-            if (isParagraphStyleToSkip(paragraph)) {
-                continue;
-            }
+    static LatencyRecorder llmLatencies() {
+        return ROUTER.getLatencies();
+    }
 
-            // STEP 1: Add markers for all superscripts/subscripts FIRST
-            addMarkersToSuperSubscripts(paragraph);
-            
-            // STEP 2: Now proceed with grammar checking on the marked text
-            List<RunInfo> runInfos = extractRunInfos(paragraph);
-            if (runInfos.isEmpty()) {
-                continue;
+    // Only the node whose rename wins processes the document; a failed one goes back to the folder
+    private static void processLeased(FileLeaseCoordinator leases, Path inputPath, Path docxFile) {
+        FileLeaseCoordinator.Lease lease = leases.tryClaim(docxFile);
+        if (lease == null) {
+            return;
+        }
+        if (processFile(lease.file(), inputPath.relativize(lease.document()).toString(), lease)) {
+            lease.complete();
+        } else {
+            lease.release();
+        }
+    }
+
+    /**
+     * Subfolders of the input tree are mirrored in the output folder under relativeName.
+     * Returns false if the document failed or has flagged paragraphs, and was left where it is.
+     *
+     * @param lease the lease the document is held under, or null without coordination
+     */
+    private static boolean processFile(Path docxFile, String relativeName, FileLeaseCoordinator.Lease lease) {
+        MONITOR.documentStarted(relativeName);
+        long traceStart = TRACE.start();
+        boolean succeeded = false;
+        try {
+            String correctedFileName;
+            if (Files.size(docxFile) >= STREAMING_MIN_BYTES) {
+                correctedFileName = streamAndProcessDocxFile(docxFile, relativeName, lease);
+            } else {
+                byte[] source = Files.readAllBytes(docxFile);
+                correctedFileName = writeToFile(correctDocument(source), source, relativeName, lease);
             }
+            System.out.println("Processed: " + relativeName + " → " + correctedFileName);
+
+            // A flagged paragraph was never corrected, so the next run has to see the document again
+            int flagged = MONITOR.flaggedInCurrentDocument();
+            if (flagged > 0) {
+                System.err.println("Left " + relativeName + " in the input folder: " + flagged
+                        + " paragraphs flagged after backend failures");
+                return false;
+            }
+
+            // Move original to output folder
+            Path destinationPath = Paths.get(OUTPUT_FOLDER, relativeName);
+            Files.move(docxFile, destinationPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Moved original file to: " + destinationPath);
+            succeeded = true;
+        } catch (Exception e) {
+            System.err.println("Error processing " + relativeName + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            MONITOR.documentFinished(succeeded);
+            TRACE.complete("document", "document", traceStart, "file", relativeName, "ok", succeeded);
+        }
+        return succeeded;
+    }
+
+    public static String readAndProcessDocxFile(InputStream inputStream, String originalFileName) throws Exception {
+        // Keep the original package bytes so untouched parts can be copied without recompression
+        byte[] source = inputStream.readAllBytes();
+        return writeToFile(correctDocument(source), source, originalFileName);
+    }
+
+    /**
+     * Open a package and correct it in memory; the caller decides where it is written
+     */
+    static XWPFDocument correctDocument(byte[] source) throws Exception {
+        XWPFDocument doc = loadDocument(source);
+        correctDocument(doc);
+        return doc;
+    }
+
+    /**
+     * Parse a package; fails only if the input is not a readable DOCX
+     */
+    static XWPFDocument loadDocument(byte[] source) throws IOException {
+        long traceStart = TRACE.start();
+        XWPFDocument doc = new XWPFDocument(new ByteArrayInputStream(source));
+        TRACE.complete("load", "document", traceStart, "bytes", source.length);
+        return doc;
+    }
+
+    /**
+     * Correct an open document in place. An IOException from here is a backend failure
+     * (or an interrupt), never a problem with the document itself.
+     */
+    static void correctDocument(XWPFDocument doc) throws IOException {
+        StyleClassifier styles = styleClassifier(documentStyles(doc));
+
+        normalizeQuotes(doc);
+        List<XWPFParagraph> paragraphs = doc.getParagraphs();
+        MONITOR.paragraphsFound(paragraphs.size());
+
+        for (int i = 0; i < paragraphs.size(); i++) {
+            processParagraph(paragraphs.get(i), styles, i);
+        }
+    }
+
+    /**
+     * Load the backend models and the POI/XMLBeans classes before the first request
+     */
+    static void warmUp() throws Exception {
+        ROUTER.warmUp();
+        ByteArrayOutputStream blank = new ByteArrayOutputStream();
+        // An empty paragraph goes through the whole pipeline without an LLM call
+        try (XWPFDocument doc = new XWPFDocument()) {
+            doc.createParagraph();
+            doc.write(blank);
+        }
+        byte[] source = blank.toByteArray();
+        writeDocument(correctDocument(source), source, "warm-up.docx", new ByteArrayOutputStream());
+    }
+
+    /**
+     * Bounded-memory variant of readAndProcessDocxFile for very large files
+     */
+    public static String streamAndProcessDocxFile(Path docxFile) throws Exception {
+        return streamAndProcessDocxFile(docxFile, docxFile.getFileName().toString(), null);
+    }
+
+    private static String streamAndProcessDocxFile(Path docxFile, String originalFileName,
+                                                   FileLeaseCoordinator.Lease lease) throws Exception {
+        String correctedFileName = correctedFileName(originalFileName);
+        int[] paragraphs = new int[1];
+        writeOutput(Paths.get(OUTPUT_FOLDER, correctedFileName), lease,
+                outputFile -> paragraphs[0] = StreamingDocxProcessor.process(docxFile, outputFile));
+        MONITOR.paragraphsFound(paragraphs[0]);
+        System.out.println("Streamed " + paragraphs[0] + " paragraphs of " + originalFileName);
+        return correctedFileName;
+    }
 
-            StringBuilder fullText = new StringBuilder();
-            for (RunInfo info : runInfos) {
-                fullText.append(info.text);
+    // "sub/paper.docx" becomes "sub/T_paper.docx"
+    static String correctedFileName(String originalFileName) {
+        Path original = Paths.get(originalFileName);
+        return original.resolveSibling("T_" + original.getFileName()).toString();
+    }
+
+    /**
+     * Optional quote stage, run before any paragraph is masked. Covers tables and every
+     * other body text, not just the paragraphs that are spell checked.
+     */
+    static void normalizeQuotes(XWPFDocument doc) {
+        if (SMART_QUOTES) {
+            SmartQuoteProcessor.normalizeQuotes(doc.getDocument().getBody());
+        }
+    }
+
+    /**
+     * Skip decisions for every style of a document, resolved through basedOn chains
+     */
+    static StyleClassifier styleClassifier(CTStyles styles) {
+        return new StyleClassifier(styles, STYLES_TO_SKIP);
+    }
+
+    static CTStyles documentStyles(XWPFDocument doc) {
+        try {
+            return doc.getStyle();
+        } catch (Exception e) {
+            // No (or more than one) styles part; style IDs are then matched directly
+            return null;
+        }
+    }
+
+    /**
+     * Run the full marker/mask/LLM/diff pipeline on one paragraph, editing it in place
+     *
+     * @param index position of the paragraph in its document, for tracing
+     */
+    static void processParagraph(XWPFParagraph paragraph, StyleClassifier styles, int index) throws IOException {
+        long startedAt;
+        try {
+            startedAt = MONITOR.paragraphStarted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while paused");
+        }
+        CopyeditMonitor.Outcome outcome = CopyeditMonitor.Outcome.FAILED;
+        long traceStart = TRACE.start();
+        int chars = 0;
+        try {
+            PreparedParagraph prepared = prepareParagraph(paragraph, styles);
+            if (prepared == null) {
+                outcome = CopyeditMonitor.Outcome.SKIPPED;
+                return;
             }
+            chars = prepared.originalText.length();
 
-            String originalText = fullText.toString();
-            if (originalText.trim().isEmpty()) {
-                continue;
+            String correctedMasked;
+            try {
+                correctedMasked = requestValidatedCorrection(prepared.maskedText(), prepared.placeholderCount());
+            } catch (IOException e) {
+                // A backend outage fails the document as before; only an isolated failed call is flagged
+                if (!FLAG_FAILED_PARAGRAPHS || CircuitBreaker.isOutage(e) || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                flagParagraph(prepared, index, e);
+                outcome = CopyeditMonitor.Outcome.FLAGGED;
+                return;
+            }
+            if (correctedMasked == null) {
+                // No response kept the placeholders intact; leave the paragraph as it is
+                return;
             }
 
-            TextWithPlaceholders masked = maskFromRunInfos(runInfos);
-            String correctedMasked = callGrammarCheckApi(masked.maskedText);
-            String correctedText = restorePlaceholders(correctedMasked, masked.placeholders);
+            applyCorrection(prepared, correctedMasked);
+            outcome = CopyeditMonitor.Outcome.DONE;
+        } finally {
+            MONITOR.paragraphFinished(startedAt, outcome);
+            TRACE.complete("paragraph", "paragraph", traceStart, "index", index, "chars", chars, "outcome", outcome);
+        }
+    }
+
+    private static void flagParagraph(PreparedParagraph prepared, int index, IOException cause) {
+        for (XWPFRun run : prepared.paragraph.getRuns()) {
+            run.setTextHighlightColor("yellow");
+        }
+        FLAGGED_PARAGRAPHS.incrementAndGet();
+        System.err.println("Backend failed for paragraph " + index + " (" + cause.getMessage()
+                + "), left unchanged and highlighted");
+    }
+
+    /**
+     * A paragraph with its markers inserted and its text masked, waiting for a correction
+     */
+    static final class PreparedParagraph {
+        private final XWPFParagraph paragraph;
+        private final List<RunInfo> runInfos;
+        private final String originalText;
+        private final TextWithPlaceholders masked;
+
+        private PreparedParagraph(XWPFParagraph paragraph, List<RunInfo> runInfos, String originalText,
+                                  TextWithPlaceholders masked) {
+            this.paragraph = paragraph;
+            this.runInfos = runInfos;
+            this.originalText = originalText;
+            this.masked = masked;
+        }
+
+        String maskedText() {
+            return masked.maskedText;
+        }
 
-            if (!originalText.equals(correctedText)) {
-                rebuildParagraphWithChanges(paragraph, originalText, correctedText, runInfos, masked.placeholders);
+        int placeholderCount() {
+            return masked.placeholders.size();
+        }
+
+        /** Original text behind each placeholder, in placeholder order */
+        List<String> placeholderTexts() {
+            List<String> texts = new ArrayList<>(masked.placeholders.size());
+            for (PlaceholderInfo info : masked.placeholders) {
+                texts.add(info.originalText);
             }
+            return texts;
+        }
+    }
+
+    /**
+     * Markers and masking only; returns null if the paragraph is skipped or filtered out.
+     * Deterministic for a given document, so a later run can re-derive the same masked text.
+     */
+    static PreparedParagraph prepareParagraph(XWPFParagraph paragraph, StyleClassifier styles) {
+        long traceStart = TRACE.start();
+        boolean skipStyle = styles.isParagraphToSkip(paragraph);
+        TRACE.complete("style check", "paragraph", traceStart, "skipped", skipStyle);
+        if (skipStyle) {
+            return null;
+        }
+        traceStart = TRACE.start();
+        PreparedParagraph prepared = maskParagraph(paragraph);
+        TRACE.complete("mask", "paragraph", traceStart,
+                "placeholders", prepared == null ? 0 : prepared.placeholderCount(), "sent", prepared != null);
+        return prepared;
+    }
+
+    // Markers, run text and placeholders; null if nothing is left to send
+    private static PreparedParagraph maskParagraph(XWPFParagraph paragraph) {
+        // STEP 1: Add markers for all superscripts/subscripts FIRST
+        addMarkersToSuperSubscripts(paragraph);
+
+        // STEP 2: Now proceed with grammar checking on the marked text
+        List<RunInfo> runInfos = extractRunInfos(paragraph);
+        if (runInfos.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder fullText = new StringBuilder();
+        for (RunInfo info : runInfos) {
+            fullText.append(info.text);
         }
 
-        return writeToFile(doc, originalFileName);
+        String originalText = fullText.toString();
+        if (originalText.trim().isEmpty()) {
+            return null;
+        }
+
+        TextWithPlaceholders masked = maskFromRunInfos(runInfos);
+        if (!PRE_FILTER.shouldSend(masked.maskedText)) {
+            return null;
+        }
+        return new PreparedParagraph(paragraph, runInfos, originalText, masked);
+    }
+
+    /**
+     * Restore the placeholders of a validated correction and mark up the differences
+     */
+    static void applyCorrection(PreparedParagraph prepared, String correctedMasked) {
+        String correctedText = restorePlaceholders(correctedMasked, prepared.masked.placeholders);
+
+        if (!prepared.originalText.equals(correctedText)) {
+            if (PATCH_RUNS) {
+                patchParagraphWithChanges(prepared.paragraph, prepared.originalText, correctedText, prepared.runInfos);
+            } else {
+                rebuildParagraphWithChanges(prepared.paragraph, prepared.originalText, correctedText,
+                        prepared.runInfos, prepared.masked.placeholders);
+            }
+        }
     }
 
     /**
-     * Add (SUP) or (SUB) markers after all superscripts and subscripts in a paragraph
+     * Add (SUP) or (SUB) markers after all superscripts and subscripts in a paragraph.
+     * Each marker is spliced into the XML right after its run, and the paragraph's run
+     * lists are rebuilt once at the end, so the whole pass is linear in the run count.
      */
     private static void addMarkersToSuperSubscripts(XWPFParagraph paragraph) {
-        List<XWPFRun> runs = paragraph.getRuns();
-        List<Integer> insertPositions = new ArrayList<>();
-        List<String> markerTexts = new ArrayList<>();
-        
-        // First pass: identify where to insert markers
-        for (int i = 0; i < runs.size(); i++) {
-            XWPFRun run = runs.get(i);
-            String text = run.getText(0);
-            if (text == null || text.isEmpty()) continue;
-            
-            boolean isSuperscript = isSuperscriptRun(run);
-            boolean isSubscript = isSubscriptRun(run);
-            
-            // Check for unicode superscripts/subscripts in the text
-            boolean hasUnicodeSuperSub = false;
-            for (char c : text.toCharArray()) {
-                if (isSuperscriptOrSubscript(c)) {
-                    hasUnicodeSuperSub = true;
-                    break;
-                }
+        Map<XWPFRun, XWPFRun> markers = new IdentityHashMap<>();
+        for (XWPFRun run : new ArrayList<>(paragraph.getRuns())) {
+            String markerText = markerFor(run);
+            if (markerText == null) {
+                continue;
             }
-            
-            if (isSuperscript || isSubscript || hasUnicodeSuperSub) {
-                insertPositions.add(i + 1); // Insert after this run
-                
-                if (isSuperscript) {
-                    markerTexts.add("(SUP)");
-                } else if (isSubscript) {
-                    markerTexts.add("(SUB)");
-                } else {
-                    // For unicode, determine type from first character
-                    boolean isUniSuper = isSuperscriptChar(text.charAt(0));
-                    markerTexts.add(isUniSuper ? "(SUP)" : "(SUB)");
-                }
+            if (PARAGRAPH_RUNS == null) {
+                // No access to the run lists; fall back to POI's own, quadratic, insertion
+                initMarker(paragraph.insertNewRun(paragraph.getRuns().indexOf(run) + 1), markerText);
+                continue;
             }
+            markers.put(run, initMarker(insertRunAfter(run, paragraph), markerText));
         }
-        
-        // Second pass: insert markers (in reverse order to maintain correct positions)
-        for (int i = insertPositions.size() - 1; i >= 0; i--) {
-            int position = insertPositions.get(i);
-            String markerText = markerTexts.get(i);
-            
-            // Adjust position for already inserted markers
-            for (int j = i + 1; j < insertPositions.size(); j++) {
-                if (insertPositions.get(j) <= position) {
-                    position++;
-                }
+        if (markers.isEmpty()) {
+            return;
+        }
+
+        List<XWPFRun> runs = new ArrayList<>(paragraph.getRuns().size() + markers.size());
+        for (XWPFRun run : paragraph.getRuns()) {
+            runs.add(run);
+            XWPFRun marker = markers.get(run);
+            if (marker != null) {
+                runs.add(marker);
+            }
+        }
+        List<IRunElement> iruns = new ArrayList<>(paragraph.getIRuns().size() + markers.size());
+        for (IRunElement element : paragraph.getIRuns()) {
+            iruns.add(element);
+            XWPFRun marker = element instanceof XWPFRun ? markers.get(element) : null;
+            if (marker != null) {
+                iruns.add(marker);
+            }
+        }
+        try {
+            PARAGRAPH_RUNS.set(paragraph, runs);
+            PARAGRAPH_IRUNS.set(paragraph, iruns);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not update the run list of a paragraph", e);
+        }
+    }
+
+    private static XWPFRun initMarker(XWPFRun markerRun, String markerText) {
+        markerRun.setText(markerText, 0);
+        markerRun.setColor("FF6600"); // Orange color for visibility
+        markerRun.setBold(true);
+        markerRun.setFontSize(10);
+        return markerRun;
+    }
+
+    /**
+     * Insert a new empty run directly after the given one. A run inside a hyperlink or
+     * field gets its marker after that element, as a plain run of the paragraph.
+     */
+    private static XWPFRun insertRunAfter(XWPFRun run, XWPFParagraph paragraph) {
+        XmlCursor cursor = run.getCTR().newCursor();
+        try {
+            if (run instanceof XWPFHyperlinkRun || run instanceof XWPFFieldRun) {
+                cursor.toParent();
+            }
+            // Step past the end tag and open a sibling run right there
+            cursor.toEndToken();
+            cursor.toNextToken();
+            cursor.beginElement(W_R);
+            cursor.toParent();
+            return new XWPFRun((CTR) cursor.getObject(), (IRunBody) paragraph);
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    // XWPFParagraph only builds its run lists in the constructor; null if they cannot be reached
+    private static Field paragraphField(String name) {
+        try {
+            Field field = XWPFParagraph.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Cannot access XWPFParagraph." + name + ", marker runs are inserted one by one: " + e);
+            return null;
+        }
+    }
+
+    // (SUP) or (SUB) for a superscript or subscript run, null for any other run
+    private static String markerFor(XWPFRun run) {
+        String text = run.getText(0);
+        if (text == null || text.isEmpty()) return null;
+
+        if (isSuperscriptRun(run)) {
+            return "(SUP)";
+        }
+        if (isSubscriptRun(run)) {
+            return "(SUB)";
+        }
+
+        // Check for unicode superscripts/subscripts in the text
+        for (int k = 0; k < text.length(); k++) {
+            if (isSuperscriptOrSubscript(text.charAt(k))) {
+                // For unicode, determine type from first character
+                return isSuperscriptChar(text.charAt(0)) ? "(SUP)" : "(SUB)";
             }
-            
-            XWPFRun markerRun = paragraph.insertNewRun(position);
-            markerRun.setText(markerText, 0);
-            markerRun.setColor("FF6600"); // Orange color for visibility
-            markerRun.setBold(true);
-            markerRun.setFontSize(10);
         }
+        return null;
     }
 
     private static List<RunInfo> extractRunInfos(XWPFParagraph paragraph) {
@@ -340,13 +772,18 @@ public class SpellCheckProcessor {
         for (RunInfo info : runInfos) {
             if (info.isSuperscript || info.isSubscript) {
                 placeholders.add(new PlaceholderInfo(info.text, info.isSuperscript, info.isSubscript, info.formatting));
-                masked.append("«SUPSUB_").append(placeholders.size() - 1).append("»");
+                masked.append(ProtectedSpanMasker.placeholder(PlaceholderInfo.SUPSUB, placeholders.size() - 1));
             } else {
                 masked.append(maskUnicodeSuperSubscripts(info.text, placeholders, info.formatting));
             }
         }
 
-        return new TextWithPlaceholders(masked.toString(), placeholders);
+        // Spans are found across run boundaries; restoring puts their text back verbatim
+        String maskedText = SPAN_MASKER.mask(masked.toString(), (kind, original) -> {
+            placeholders.add(new PlaceholderInfo(original, false, false, null, kind));
+            return placeholders.size() - 1;
+        });
+        return new TextWithPlaceholders(maskedText, placeholders);
     }
 
     private static String maskUnicodeSuperSubscripts(String text, List<PlaceholderInfo> placeholders, RunFormatting formatting) {
@@ -360,7 +797,7 @@ public class SpellCheckProcessor {
                 if (currentGroup.length() > 0) {
                     boolean isSuper = isSuperscriptChar(currentGroup.charAt(0));
                     placeholders.add(new PlaceholderInfo(currentGroup.toString(), isSuper, !isSuper, formatting));
-                    result.append("«SUPSUB_").append(placeholders.size() - 1).append("»");
+                    result.append(ProtectedSpanMasker.placeholder(PlaceholderInfo.SUPSUB, placeholders.size() - 1));
                     currentGroup.setLength(0);
                 }
                 result.append(c);
@@ -370,7 +807,7 @@ public class SpellCheckProcessor {
         if (currentGroup.length() > 0) {
             boolean isSuper = isSuperscriptChar(currentGroup.charAt(0));
             placeholders.add(new PlaceholderInfo(currentGroup.toString(), isSuper, !isSuper, formatting));
-            result.append("«SUPSUB_").append(placeholders.size() - 1).append("»");
+            result.append(ProtectedSpanMasker.placeholder(PlaceholderInfo.SUPSUB, placeholders.size() - 1));
         }
 
         return result.toString();
@@ -389,25 +826,15 @@ public class SpellCheckProcessor {
         int i = 0;
 
         while (i < maskedText.length()) {
-            if (maskedText.startsWith("«SUPSUB_", i)) {
+            int index = maskedText.charAt(i) == '«' ? PlaceholderValidator.placeholderIndex(maskedText, i) : -1;
+            if (index >= 0) {
                 int end = maskedText.indexOf("»", i);
-                if (end != -1) {
-                    String numPart = maskedText.substring(i + 8, end);
-                    try {
-                        int index = Integer.parseInt(numPart);
-                        if (index >= 0 && index < placeholders.size()) {
-                            result.append(placeholders.get(index).originalText);
-                        } else {
-                            result.append("«SUPSUB_").append(numPart).append("»");
-                        }
-                    } catch (NumberFormatException e) {
-                        result.append("«SUPSUB_").append(numPart).append("»");
-                    }
-                    i = end + 1;
+                if (index < placeholders.size()) {
+                    result.append(placeholders.get(index).originalText);
                 } else {
-                    result.append(maskedText.charAt(i));
-                    i++;
+                    result.append(maskedText, i, end + 1);
                 }
+                i = end + 1;
             } else {
                 result.append(maskedText.charAt(i));
                 i++;
@@ -426,8 +853,11 @@ public class SpellCheckProcessor {
             paragraph.removeRun(i);
         }
 
+        long traceStart = TRACE.start();
         List<TextSegment> segments = compareTexts(originalText, correctedText, originalRuns, placeholders);
+        TRACE.complete("diff", "paragraph", traceStart, "segments", segments.size());
 
+        traceStart = TRACE.start();
         for (TextSegment segment : segments) {
             XWPFRun run = paragraph.createRun();
             run.setText(segment.text, 0);
@@ -444,6 +874,104 @@ public class SpellCheckProcessor {
                 run.setSubscript(VerticalAlign.SUBSCRIPT);
             }
         }
+        TRACE.complete("rebuild", "paragraph", traceStart, "runs", segments.size());
+    }
+
+    /**
+     * Apply the diff by editing only the runs it touches. Each affected run is split
+     * into pieces that keep its rPr; every other run, with its fields, bookmarks and
+     * properties, is left exactly as it was.
+     */
+    private static void patchParagraphWithChanges(XWPFParagraph paragraph, String originalText,
+                                                  String correctedText, List<RunInfo> originalRuns) {
+        List<XWPFRun> runs = paragraph.getRuns();
+        int[] runEnds = new int[originalRuns.size()];
+        int end = 0;
+        for (int r = 0; r < originalRuns.size(); r++) {
+            end += originalRuns.get(r).text.length();
+            runEnds[r] = end;
+        }
+
+        // Map every diff piece onto the original run its characters came from
+        List<List<DiffResult>> pieces = new ArrayList<>(Collections.nCopies(runs.size(), null));
+        boolean[] touched = new boolean[runs.size()];
+        int origPos = 0;
+
+        long traceStart = TRACE.start();
+        List<DiffResult> diffs = diffWords(originalText, correctedText);
+        TRACE.complete("diff", "paragraph", traceStart, "segments", diffs.size());
+
+        traceStart = TRACE.start();
+        for (DiffResult diff : diffs) {
+            if (diff.type == DiffType.ADDED) {
+                // Additions take the formatting of the preceding character, as in compareTexts
+                int r = runContaining(runEnds, Math.max(0, origPos - 1));
+                addPiece(pieces, r, diff.text, DiffType.ADDED);
+                touched[r] = true;
+                continue;
+            }
+
+            int offset = 0;
+            while (offset < diff.text.length()) {
+                int r = runContaining(runEnds, origPos);
+                int take = Math.min(diff.text.length() - offset, runEnds[r] - origPos);
+                addPiece(pieces, r, diff.text.substring(offset, offset + take), diff.type);
+                touched[r] |= diff.type == DiffType.REMOVED;
+                offset += take;
+                origPos += take;
+            }
+        }
+
+        for (int r = 0; r < runs.size(); r++) {
+            if (!touched[r]) {
+                continue;
+            }
+            RunFormatting formatting = originalRuns.get(r).formatting;
+            List<DiffResult> runPieces = pieces.get(r);
+            XWPFRun target = runs.get(r);
+
+            for (int k = 0; k < runPieces.size(); k++) {
+                DiffResult piece = runPieces.get(k);
+                if (k > 0) {
+                    target = paragraph.insertNewRun(paragraph.getRuns().indexOf(target) + 1);
+                }
+                if (k > 0 || piece.type != DiffType.UNCHANGED) {
+                    formatting.applyTo(target, piece.type == DiffType.ADDED, piece.type == DiffType.REMOVED);
+                }
+                target.setText(piece.text, 0);
+            }
+        }
+        TRACE.complete("rebuild", "paragraph", traceStart, "runs", runs.size());
+    }
+
+    // Index of the run holding character pos, skipping runs without text
+    private static int runContaining(int[] runEnds, int pos) {
+        int low = 0;
+        int high = runEnds.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (runEnds[mid] > pos) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // Appends to a run's piece list, merging with the previous piece of the same type
+    private static void addPiece(List<List<DiffResult>> pieces, int run, String text, DiffType type) {
+        List<DiffResult> list = pieces.get(run);
+        if (list == null) {
+            list = new ArrayList<>();
+            pieces.set(run, list);
+        }
+        int last = list.size() - 1;
+        if (last >= 0 && list.get(last).type == type) {
+            list.set(last, new DiffResult(list.get(last).text + text, type));
+        } else {
+            list.add(new DiffResult(text, type));
+        }
     }
 
     private static List<TextSegment> compareTexts(String original, String corrected,
@@ -458,10 +986,7 @@ public class SpellCheckProcessor {
             }
         }
 
-        String[] origWords = original.split("(?<=\\s)|(?=\\s)|(?<=\\p{Punct})|(?=\\p{Punct})");
-        String[] corrWords = corrected.split("(?<=\\s)|(?=\\s)|(?<=\\p{Punct})|(?=\\p{Punct})");
-
-        List<DiffResult> diffs = computeWordDiff(origWords, corrWords);
+        List<DiffResult> diffs = diffWords(original, corrected);
         List<TextSegment> segments = new ArrayList<>();
 
         // Track position in original text to map formatting
@@ -492,6 +1017,59 @@ public class SpellCheckProcessor {
         return processSuperSubscriptsInSegments(segments, placeholders);
     }
 
+    private static List<DiffResult> diffWords(String original, String corrected) {
+        String[] origWords = original.split("(?<=\\s)|(?=\\s)|(?<=\\p{Punct})|(?=\\p{Punct})");
+        String[] corrWords = corrected.split("(?<=\\s)|(?=\\s)|(?<=\\p{Punct})|(?=\\p{Punct})");
+        List<DiffResult> diffs = computeWordDiff(origWords, corrWords);
+        return CHARACTER_DIFF ? refineChangedWords(diffs) : diffs;
+    }
+
+    /**
+     * Replace each lone REMOVED word directly followed by a lone ADDED word with its
+     * character-level diff, when the two words are short and mostly alike
+     */
+    private static List<DiffResult> refineChangedWords(List<DiffResult> diffs) {
+        List<DiffResult> refined = new ArrayList<>(diffs.size());
+        for (int i = 0; i < diffs.size(); i++) {
+            DiffResult diff = diffs.get(i);
+            boolean pair = diff.type == DiffType.REMOVED
+                    && i + 1 < diffs.size() && diffs.get(i + 1).type == DiffType.ADDED
+                    && (i == 0 || diffs.get(i - 1).type != DiffType.REMOVED)
+                    && (i + 2 == diffs.size() || diffs.get(i + 2).type != DiffType.ADDED);
+            String script = pair ? CharacterDiff.editScript(diff.text, diffs.get(i + 1).text) : null;
+            if (script == null) {
+                refined.add(diff);
+                continue;
+            }
+
+            String removed = diff.text;
+            String added = diffs.get(++i).text;
+            int a = 0;
+            int b = 0;
+            int k = 0;
+            while (k < script.length()) {
+                char op = script.charAt(k);
+                int length = 0;
+                while (k < script.length() && script.charAt(k) == op) {
+                    length++;
+                    k++;
+                }
+                if (op == CharacterDiff.ADD) {
+                    refined.add(new DiffResult(added.substring(b, b + length), DiffType.ADDED));
+                    b += length;
+                } else if (op == CharacterDiff.REMOVE) {
+                    refined.add(new DiffResult(removed.substring(a, a + length), DiffType.REMOVED));
+                    a += length;
+                } else {
+                    refined.add(new DiffResult(removed.substring(a, a + length), DiffType.UNCHANGED));
+                    a += length;
+                    b += length;
+                }
+            }
+        }
+        return refined;
+    }
+
     private static List<DiffResult> computeWordDiff(String[] original, String[] corrected) {
         List<DiffResult> results = new ArrayList<>();
         int[][] dp = new int[original.length + 1][corrected.length + 1];
@@ -586,94 +1164,174 @@ public class SpellCheckProcessor {
         return result;
     }
 
-    private static boolean isParagraphStyleToSkip(XWPFParagraph paragraph) {
-        String styleId = paragraph.getStyleID();
-        if (styleId != null && STYLES_TO_SKIP.contains(styleId.toUpperCase())) {
-            return true;
-        }
-
-        for (XWPFRun run : paragraph.getRuns()) {
+    /**
+     * Call the API and check the placeholders in the response, and with the change guard
+     * on how much of the paragraph it changed, retrying a bad response up to
+     * PLACEHOLDER_RETRIES times. Returns null if no response passed. With two model
+     * tiers, a paragraph the router sends to the fast tier gets one fast attempt; a
+     * doubtful fast answer, or a failed fast call, moves on to the strong tier without
+     * using up a retry.
+     */
+    static String requestValidatedCorrection(String maskedText, int placeholderCount) throws IOException {
+        if (ROUTER.route(maskedText, placeholderCount) == ModelRouter.Tier.FAST) {
             try {
-                CTR ctr = run.getCTR();
-                if (ctr != null && ctr.isSetRPr()) {
-                    CTString rStyle = ctr.getRPr().getRStyle();
-                    if (rStyle != null && STYLES_TO_SKIP.contains(rStyle.getVal().toUpperCase())) {
-                        return true;
-                    }
+                String response = requestCorrection(ROUTER.backend(ModelRouter.Tier.FAST), maskedText);
+                PlaceholderValidator.Result result = validateResponse(response, maskedText, placeholderCount);
+                if (!ROUTER.shouldEscalate(maskedText, response, result) && CHANGE_GUARD.accept(maskedText, response)) {
+                    return response;
                 }
-            } catch (Exception e) {
-                // Ignore
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                // The strong tier may well be up, possibly on another server
+                ROUTER.fastFailed();
+                System.err.println("Fast tier failed (" + e.getMessage() + "), escalating to the strong tier");
             }
         }
-        return false;
+
+        LlmBackend strong = ROUTER.backend(ModelRouter.Tier.STRONG);
+        for (int attempt = 0; attempt <= PLACEHOLDER_RETRIES; attempt++) {
+            String response = requestCorrection(strong, maskedText);
+            PlaceholderValidator.Result result = validateResponse(response, maskedText, placeholderCount);
+            String reason;
+            if (result != PlaceholderValidator.Result.OK) {
+                reason = result.toString();
+            } else if (!CHANGE_GUARD.accept(maskedText, response)) {
+                // A wholesale rewrite is useless to an editor and the most expensive thing to diff
+                reason = "changed more than " + Math.round(CHANGE_GUARD.getMaxRatio() * 100) + "% of a "
+                        + maskedText.length() + "-character paragraph";
+            } else {
+                return response;
+            }
+            System.err.println("Rejected LLM response (" + reason + "), attempt " + (attempt + 1)
+                    + " of " + (PLACEHOLDER_RETRIES + 1));
+        }
+        return null;
+    }
+
+    static PlaceholderValidator.Result validateResponse(String response, String maskedText, int placeholderCount) {
+        return VALIDATOR.validate(response, maskedText, placeholderCount);
     }
 
-    private static String callGrammarCheckApi(String text) throws IOException {
-        URL url = new URL(API_URL);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setDoOutput(true);
-
-        String escapedText = text.replace("\\", "\\\\")
-                                 .replace("\"", "\\\"")
-                                 .replace("\n", "\\n")
-                                 .replace("\r", "\\r");
-
-        String payload = "{"
-                + "\"model\":\"qwen2.5:3b\","
-                + "\"messages\":["
-                + "{\"role\":\"system\", \"content\":\"You are an expert copy editor. Your task is to review the provided text and return the corrected version of the text. ONLY fix grammatical errors, spelling mistakes, punctuation issues, and incorrect word usage in the main body text. DO NOT enhance, rewrite, or improve the sentence in any way.\\n\\n"
-                + "CRITICAL RULES:\\n"
-                + "- STRICTLY retain all existing quotes exactly as they are (straight or curved).\\n"
-                + "- STRICTLY retain all brackets exactly as they are.\\n"
-                + "- NEVER modify any placeholder text in the format «SUPSUB_N». These represent superscripts/subscripts that must remain exactly as is.\\n"
-                + "- Do not alter the original tone, style, structure, or formatting intent.\\n"
-                + "- Do not include any explanations, comments, or additional notes. Return ONLY the corrected text.\"},"
-                + "{\"role\":\"user\", \"content\":\"" + escapedText + "\"}"
-                + "],"
-                + "\"temperature\":0.1"
-                + "}";
-
-        try (OutputStream os = connection.getOutputStream()) {
-            os.write(payload.getBytes(StandardCharsets.UTF_8));
-        }
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode == 200) {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line.trim());
+    /**
+     * The checks a strong-tier answer has to pass online, for responses that were
+     * obtained elsewhere, such as in an offline batch run
+     */
+    static boolean acceptResponse(String response, String maskedText, int placeholderCount) {
+        return validateResponse(response, maskedText, placeholderCount) == PlaceholderValidator.Result.OK
+                && CHANGE_GUARD.accept(maskedText, response);
+    }
+
+    // Corrected masked text, asked for as an edit list first when that format is on
+    private static String requestCorrection(LlmBackend backend, String text) throws IOException {
+        if (EDIT_LIST == null) {
+            return callGrammarCheckApi(backend, SYSTEM_PROMPT, text);
+        }
+        String corrected = EDIT_LIST.apply(text, callGrammarCheckApi(backend, EDITS_PROMPT, text));
+        return corrected != null ? corrected : callGrammarCheckApi(backend, SYSTEM_PROMPT, text);
+    }
+
+    // The model is part of the key, so a fast answer is never handed to a strong-tier caller
+    private static String callGrammarCheckApi(LlmBackend backend, String systemPrompt, String text) throws IOException {
+        long traceStart = TRACE.start();
+        try {
+            return IN_FLIGHT.execute(backend.getModel() + '\u0000' + systemPrompt + '\u0000' + text,
+                    () -> backend.getRetryPolicy().call(() -> backend.chat(systemPrompt, text)));
+        } finally {
+            TRACE.complete("llm", "llm", traceStart, "model", backend.getModel(), "chars", text.length());
+        }
+    }
+
+    static String writeToFile(XWPFDocument doc, byte[] source, String originalFileName) throws Exception {
+        return writeToFile(doc, source, originalFileName, null);
+    }
+
+    private static String writeToFile(XWPFDocument doc, byte[] source, String originalFileName,
+                                      FileLeaseCoordinator.Lease lease) throws Exception {
+        String correctedFileName = correctedFileName(originalFileName);
+        long traceStart = TRACE.start();
+        writeOutput(Paths.get(OUTPUT_FOLDER, correctedFileName), lease, outputFile -> {
+            try {
+                try (ZipRepackager zip = new ZipRepackager(source);
+                     OutputStream out = Files.newOutputStream(outputFile)) {
+                    writeRepackaged(doc, zip, out);
+                }
+            } catch (ZipException e) {
+                System.err.println("Raw repackaging not possible for " + originalFileName
+                        + " (" + e.getMessage() + "), rewriting whole package");
+                try (OutputStream out = Files.newOutputStream(outputFile)) {
+                    doc.write(out);
                 }
-                return extractCorrectedText(response.toString());
             }
-        } else {
-            throw new IOException("HTTP " + responseCode + " from API");
-        }
+        });
+        TRACE.complete("write", "document", traceStart, "file", correctedFileName);
+        return correctedFileName;
     }
 
-    private static String extractCorrectedText(String jsonResponse) {
+    private interface OutputWriter {
+        void writeTo(Path file) throws Exception;
+    }
+
+    /**
+     * Write an output file to a staging file next to it, renamed onto the target only once
+     * it is complete, so a failure halfway (a streamed document's backend calls happen
+     * while it is written) never leaves a truncated document behind. Under a lease the
+     * staging file is node-unique and only published while this node still holds the lease.
+     */
+    private static void writeOutput(Path target, FileLeaseCoordinator.Lease lease, OutputWriter writer)
+            throws Exception {
+        Files.createDirectories(target.getParent());
+        Path staged = lease != null ? lease.stagingFile(target) : target.resolveSibling(target.getFileName() + ".tmp");
         try {
-            JSONObject jsonObject = new JSONObject(jsonResponse);
-            JSONArray choices = jsonObject.getJSONArray("choices");
-            if (choices.length() > 0) {
-                return choices.getJSONObject(0).getJSONObject("message").getString("content");
+            writer.writeTo(staged);
+            if (lease != null) {
+                lease.publish(staged, target);
+            } else {
+                Files.move(staged, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
             }
-        } catch (Exception e) {
-            System.err.println("Failed to parse JSON response: " + jsonResponse);
-            e.printStackTrace();
+        } finally {
+            Files.deleteIfExists(staged);
         }
-        return "No corrected text found.";
     }
 
-    private static String writeToFile(XWPFDocument doc, String originalFileName) throws Exception {
-        new File(OUTPUT_FOLDER).mkdirs();
-        String correctedFileName = "T_" + originalFileName;
-        try (FileOutputStream out = new FileOutputStream(OUTPUT_FOLDER + "/" + correctedFileName)) {
+    /**
+     * Counterpart of writeToFile for documents that are sent back rather than saved. The
+     * package is checked before the first byte goes out, so out may be a response stream.
+     */
+    static void writeDocument(XWPFDocument doc, byte[] source, String originalFileName,
+                              OutputStream out) throws IOException {
+        long traceStart = TRACE.start();
+        ZipRepackager zip;
+        try {
+            zip = new ZipRepackager(source);
+        } catch (ZipException e) {
+            System.err.println("Raw repackaging not possible for " + originalFileName
+                    + " (" + e.getMessage() + "), rewriting whole package");
+            zip = null;
+        }
+        if (zip == null) {
             doc.write(out);
+        } else {
+            try (ZipRepackager repackager = zip) {
+                writeRepackaged(doc, repackager, out);
+            }
         }
-        return correctedFileName;
+        TRACE.complete("write", "document", traceStart, "file", originalFileName);
+    }
+
+    /**
+     * Only the main document part is ever edited, so re-encode just that part and
+     * copy every other entry (images, embedded objects, styles) as raw compressed bytes
+     */
+    private static void writeRepackaged(XWPFDocument doc, ZipRepackager zip, OutputStream out) throws IOException {
+        String mainPart = doc.getPackagePart().getPartName().getName().substring(1);
+        zip.writeTo(out, Collections.singletonMap(mainPart, (original, rewritten) -> {
+            // Same serialisation as XWPFDocument.commit()
+            XmlOptions xmlOptions = new XmlOptions(POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+            xmlOptions.setSaveSyntheticDocumentElement(
+                    new QName(CTDocument1.type.getName().getNamespaceURI(), "document"));
+            doc.getDocument().save(rewritten, xmlOptions);
+        }));
     }
 }
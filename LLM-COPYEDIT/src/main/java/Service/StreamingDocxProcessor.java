@@ -0,0 +1,323 @@
+package Service;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlOptions;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTP;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.StylesDocument;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Bounded-memory processing for very large DOCX files. Instead of loading the whole
+ * package into an XWPFDocument, the main document part is pulled through StAX one
+ * body paragraph at a time. Each paragraph is parsed into a small CTP, run through
+ * {@link SpellCheckProcessor#processParagraph} and written straight into the output
+ * zip, so memory scales with the largest paragraph rather than with the document.
+ * All other entries are copied as raw compressed bytes by {@link ZipRepackager}.
+ */
+class StreamingDocxProcessor {
+
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final QName W_P = new QName(W_NS, "p");
+    private static final QName W_BODY = new QName(W_NS, "body");
+    private static final QName W_T = new QName(W_NS, "t");
+    private static final String OFFICE_DOCUMENT_REL = "/officeDocument";
+    private static final String STYLES_REL = "/styles";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        // DOCX parts never need DTDs; refuse them rather than resolving anything external
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // One characters event per w:t, so quote pairing sees the whole text node
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Process source into target, returning the number of body paragraphs visited.
+     */
+    static int process(Path source, Path target) throws IOException, XMLStreamException, XmlException {
+        try {
+            return processRepackaged(source, target);
+        } catch (ZipException e) {
+            System.err.println("Raw repackaging not possible for " + source.getFileName()
+                    + " (" + e.getMessage() + "), recompressing every entry");
+            return processRecompressed(source, target);
+        }
+    }
+
+    // Untouched entries are copied as raw compressed bytes, only the main part is re-encoded
+    private static int processRepackaged(Path source, Path target) throws IOException {
+        try (ZipRepackager zip = new ZipRepackager(source)) {
+            String mainPart = zip.hasEntry("_rels/.rels") ? findRelationshipTarget(zip.openEntry("_rels/.rels"), "", OFFICE_DOCUMENT_REL) : null;
+            if (mainPart == null) {
+                mainPart = "word/document.xml";
+            }
+            String mainRels = relationshipsPartFor(mainPart);
+            String stylesPart = zip.hasEntry(mainRels) ? findRelationshipTarget(zip.openEntry(mainRels), mainPart, STYLES_REL) : null;
+            StyleClassifier styles = loadStyles(stylesPart != null && zip.hasEntry(stylesPart) ? zip.openEntry(stylesPart) : null);
+            // Anything the repackager rejects must turn up before the first paragraph goes to the LLM
+            zip.checkRepackable(Collections.singleton(mainPart));
+
+            int[] paragraphs = new int[1];
+            try (OutputStream out = Files.newOutputStream(target)) {
+                zip.writeTo(out, Collections.singletonMap(mainPart, (original, rewritten) -> {
+                    try {
+                        paragraphs[0] = rewriteDocumentPart(original, rewritten, styles);
+                    } catch (XMLStreamException | XmlException e) {
+                        throw new IOException("Failed to rewrite " + source.getFileName() + ": " + e.getMessage(), e);
+                    }
+                }));
+            } catch (ZipException e) {
+                // Too late to recompress instead: that would send every paragraph to the LLM again
+                throw new IOException("Repackaging " + source.getFileName() + " failed: " + e.getMessage(), e);
+            }
+            return paragraphs[0];
+        }
+    }
+
+    private static int processRecompressed(Path source, Path target) throws IOException, XMLStreamException, XmlException {
+        try (ZipFile zip = new ZipFile(source.toFile());
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            ZipEntry rels = zip.getEntry("_rels/.rels");
+            String mainPart = rels == null ? null : findRelationshipTarget(zip.getInputStream(rels), "", OFFICE_DOCUMENT_REL);
+            if (mainPart == null) {
+                mainPart = "word/document.xml";
+            }
+            ZipEntry mainRels = zip.getEntry(relationshipsPartFor(mainPart));
+            String stylesPart = mainRels == null ? null : findRelationshipTarget(zip.getInputStream(mainRels), mainPart, STYLES_REL);
+            ZipEntry stylesEntry = stylesPart == null ? null : zip.getEntry(stylesPart);
+            StyleClassifier styles = loadStyles(stylesEntry == null ? null : zip.getInputStream(stylesEntry));
+            int paragraphs = 0;
+
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream in = zip.getInputStream(entry)) {
+                    if (entry.getName().equals(mainPart)) {
+                        paragraphs = rewriteDocumentPart(in, out, styles);
+                    } else {
+                        in.transferTo(out);
+                    }
+                }
+                out.closeEntry();
+            }
+            return paragraphs;
+        }
+    }
+
+    // Target of the first relationship of the given type, as a zip entry name. The main
+    // part is whatever _rels/.rels points at, normally word/document.xml; its styles are
+    // whatever the main part's own relationships point at, normally word/styles.xml
+    private static String findRelationshipTarget(InputStream rels, String sourcePart, String typeSuffix)
+            throws IOException {
+        try (InputStream in = rels) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && "Relationship".equals(reader.getLocalName())) {
+                        String type = reader.getAttributeValue(null, "Type");
+                        String target = reader.getAttributeValue(null, "Target");
+                        if (type != null && target != null && type.endsWith(typeSuffix)) {
+                            return target.startsWith("/")
+                                    ? target.substring(1)
+                                    : sourcePart.substring(0, sourcePart.lastIndexOf('/') + 1) + target;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unreadable package relationships: " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    // "word/document.xml" has its relationships in "word/_rels/document.xml.rels"
+    private static String relationshipsPartFor(String part) {
+        int slash = part.lastIndexOf('/');
+        return part.substring(0, slash + 1) + "_rels/" + part.substring(slash + 1) + ".rels";
+    }
+
+    private static StyleClassifier loadStyles(InputStream stylesPart) throws IOException {
+        if (stylesPart == null) {
+            return SpellCheckProcessor.styleClassifier(null);
+        }
+        try (InputStream in = stylesPart) {
+            return SpellCheckProcessor.styleClassifier(StylesDocument.Factory.parse(in).getStyles());
+        } catch (XmlException e) {
+            System.err.println("Unreadable styles part, matching style IDs directly: " + e.getMessage());
+            return SpellCheckProcessor.styleClassifier(null);
+        }
+    }
+
+    private static int rewriteDocumentPart(InputStream in, OutputStream out, StyleClassifier styles)
+            throws IOException, XMLStreamException, XmlException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        // Closing an XMLEventWriter leaves the underlying zip stream open
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+        // Paragraph wrappers need a document to hang off; an empty one keeps that tiny
+        try (XWPFDocument scratch = new XWPFDocument()) {
+            Deque<QName> elements = new ArrayDeque<>();
+            Map<String, String> inScope = new LinkedHashMap<>();
+            // Per open element, the bindings its own declarations replaced (null: none before)
+            Deque<Map<String, String>> shadowed = new ArrayDeque<>();
+            int paragraphs = 0;
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    if (W_P.equals(start.getName()) && W_BODY.equals(elements.peek())) {
+                        // The total is only known at the end, so progress counts paragraphs as they come
+                        SpellCheckProcessor.monitor().paragraphFound();
+                        String paragraphXml = captureElement(start, reader, inScope);
+                        writeFragment(processParagraphXml(paragraphXml, scratch, styles, paragraphs), writer, inScope);
+                        paragraphs++;
+                        continue;
+                    }
+                    Map<String, String> replaced = new HashMap<>();
+                    Iterator<?> namespaces = start.getNamespaces();
+                    while (namespaces.hasNext()) {
+                        Namespace ns = (Namespace) namespaces.next();
+                        replaced.put(ns.getPrefix(), inScope.put(ns.getPrefix(), ns.getNamespaceURI()));
+                    }
+                    shadowed.push(replaced);
+                    elements.push(start.getName());
+                } else if (event.isEndElement()) {
+                    elements.pop();
+                    for (Map.Entry<String, String> binding : shadowed.pop().entrySet()) {
+                        if (binding.getValue() == null) {
+                            inScope.remove(binding.getKey());
+                        } else {
+                            inScope.put(binding.getKey(), binding.getValue());
+                        }
+                    }
+                } else if (SpellCheckProcessor.SMART_QUOTES && event.isCharacters() && W_T.equals(elements.peek())) {
+                    // Text outside body paragraphs, such as table cells
+                    event = EVENT_FACTORY.createCharacters(
+                            SmartQuoteProcessor.smartQuotesExceptCant(event.asCharacters().getData()));
+                }
+
+                writer.add(event);
+            }
+
+            writer.flush();
+            writer.close();
+            reader.close();
+            return paragraphs;
+        }
+    }
+
+    // Serialises one element subtree, redeclaring the ancestors' namespaces on its root
+    private static String captureElement(StartElement start, XMLEventReader reader, Map<String, String> inScope)
+            throws XMLStreamException {
+        StringWriter buffer = new StringWriter();
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(buffer);
+
+        Map<String, Namespace> declarations = new LinkedHashMap<>();
+        for (Map.Entry<String, String> ns : inScope.entrySet()) {
+            declarations.put(ns.getKey(), namespace(ns.getKey(), ns.getValue()));
+        }
+        Iterator<?> own = start.getNamespaces();
+        while (own.hasNext()) {
+            Namespace ns = (Namespace) own.next();
+            declarations.put(ns.getPrefix(), ns);
+        }
+
+        QName name = start.getName();
+        writer.add(EVENT_FACTORY.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+                start.getAttributes(), declarations.values().iterator()));
+
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            writer.add(event);
+        }
+
+        writer.close();
+        return buffer.toString();
+    }
+
+    private static String processParagraphXml(String paragraphXml, XWPFDocument scratch, StyleClassifier styles,
+                                              int index) throws IOException, XmlException {
+        XmlOptions loadOptions = new XmlOptions();
+        // Drop the <w:p> wrapper so its attributes and children become the CTP itself
+        loadOptions.setLoadReplaceDocumentElement(null);
+        CTP ctp = CTP.Factory.parse(paragraphXml, loadOptions);
+        if (SpellCheckProcessor.SMART_QUOTES) {
+            SmartQuoteProcessor.normalizeQuotes(ctp);
+        }
+
+        SpellCheckProcessor.processParagraph(new XWPFParagraph(ctp, scratch), styles, index);
+
+        XmlOptions saveOptions = new XmlOptions();
+        saveOptions.setSaveSyntheticDocumentElement(new QName(W_NS, "p", "w"));
+        saveOptions.setSaveAggressiveNamespaces();
+        return ctp.xmlText(saveOptions);
+    }
+
+    // Copies a serialised fragment into the part, dropping namespace declarations already in scope
+    private static void writeFragment(String xml, XMLEventWriter writer, Map<String, String> inScope)
+            throws XMLStreamException {
+        XMLEventReader fragment = INPUT_FACTORY.createXMLEventReader(new StringReader(xml));
+        boolean root = true;
+
+        while (fragment.hasNext()) {
+            XMLEvent event = fragment.nextEvent();
+            if (event.isStartDocument() || event.isEndDocument()) {
+                continue;
+            }
+            if (root && event.isStartElement()) {
+                StartElement start = event.asStartElement();
+                List<Namespace> needed = new ArrayList<>();
+                Iterator<?> namespaces = start.getNamespaces();
+                while (namespaces.hasNext()) {
+                    Namespace ns = (Namespace) namespaces.next();
+                    if (!ns.getNamespaceURI().equals(inScope.get(ns.getPrefix()))) {
+                        needed.add(ns);
+                    }
+                }
+                QName name = start.getName();
+                event = EVENT_FACTORY.createStartElement(name.getPrefix(), name.getNamespaceURI(),
+                        name.getLocalPart(), start.getAttributes(), needed.iterator());
+                root = false;
+            }
+            writer.add(event);
+        }
+        fragment.close();
+    }
+
+    private static Namespace namespace(String prefix, String uri) {
+        return prefix == null || prefix.isEmpty()
+                ? EVENT_FACTORY.createNamespace(uri)
+                : EVENT_FACTORY.createNamespace(prefix, uri);
+    }
+}
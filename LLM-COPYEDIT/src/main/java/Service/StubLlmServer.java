@@ -0,0 +1,255 @@
+package Service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the inference server, for throughput measurements and
+ * regression runs without a GPU. Answers both /v1/chat/completions and the
+ * native /api/chat with a configurable latency, error rate and rewrite behaviour.
+ *
+ * Configured through system properties when run standalone:
+ *   stub.port          listen port, default 11434
+ *   stub.latency       fixed:MS, uniform:MIN-MAX or lognormal:MEDIAN,SIGMA (default fixed:0)
+ *   stub.msPerChar     extra decode time per output character, default 0
+ *   stub.errorRate     fraction of requests answered with HTTP 503, default 0
+ *   stub.behavior      identity, typos or drop-placeholders (default identity);
+ *                      edit-list prompts are answered with the typo fixes as edits
+ *   stub.threads       concurrent requests served, default 4
+ */
+public class StubLlmServer {
+
+    enum Behavior { IDENTITY, TYPOS, DROP_PLACEHOLDERS }
+
+    private static final Map<String, String> TYPO_FIXES = new LinkedHashMap<>();
+    static {
+        TYPO_FIXES.put("teh", "the");
+        TYPO_FIXES.put("recieve", "receive");
+        TYPO_FIXES.put("recieved", "received");
+        TYPO_FIXES.put("seperate", "separate");
+        TYPO_FIXES.put("occured", "occurred");
+        TYPO_FIXES.put("untill", "until");
+        TYPO_FIXES.put("wich", "which");
+        TYPO_FIXES.put("definately", "definitely");
+        TYPO_FIXES.put("accomodate", "accommodate");
+        TYPO_FIXES.put("enviroment", "environment");
+    }
+
+    private static final Pattern WORD = Pattern.compile("\\p{L}+");
+    private static final String EDIT_LIST_MARKER = "JSON array of edits";
+    private static final Pattern PLACEHOLDER = Pattern.compile("«[A-Z]+_\\d+»");
+
+    private final int port;
+    private final String latency;
+    private final double msPerChar;
+    private final double errorRate;
+    private final Behavior behavior;
+    private final int threads;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    StubLlmServer(int port, String latency, double msPerChar, double errorRate, Behavior behavior, int threads) {
+        this.port = port;
+        this.latency = latency;
+        this.msPerChar = msPerChar;
+        this.errorRate = errorRate;
+        this.behavior = behavior;
+        this.threads = threads;
+        sampleLatencyMillis(); // Fail fast on a malformed latency spec
+    }
+
+    static StubLlmServer fromSystemProperties() {
+        return new StubLlmServer(
+                Integer.getInteger("stub.port", 11434),
+                System.getProperty("stub.latency", "fixed:0"),
+                Double.parseDouble(System.getProperty("stub.msPerChar", "0")),
+                Double.parseDouble(System.getProperty("stub.errorRate", "0")),
+                Behavior.valueOf(System.getProperty("stub.behavior", "identity").trim()
+                        .toUpperCase(Locale.ROOT).replace('-', '_')),
+                Integer.getInteger("stub.threads", 4));
+    }
+
+    public static void main(String[] args) throws IOException {
+        StubLlmServer stub = fromSystemProperties();
+        stub.start();
+        System.out.println("Stub LLM server listening on http://localhost:" + stub.getPort()
+                + " (" + stub.behavior + ", latency " + stub.latency + ", error rate " + stub.errorRate + ")");
+    }
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/v1/chat/completions", exchange -> handle(exchange, false));
+        server.createContext("/api/chat", exchange -> handle(exchange, true));
+        server.start();
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, boolean nativeApi) throws IOException {
+        try {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String systemPrompt = JsonContentExtractor.extract(new StringReader(body), "messages", 0, "content");
+            String userText = JsonContentExtractor.extract(new StringReader(body), "messages", 1, "content");
+
+            // Warm-up requests carry no messages and return immediately
+            if (userText == null) {
+                respond(exchange, nativeApi, "");
+                return;
+            }
+
+            // Edit-list prompts get only the edits back, which is what makes them cheaper to decode
+            boolean editList = systemPrompt != null && systemPrompt.contains(EDIT_LIST_MARKER);
+            String reply = editList ? editList(userText) : rewrite(userText);
+            long delay = Math.round(sampleLatencyMillis() + msPerChar * reply.length());
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            respond(exchange, nativeApi, reply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, boolean nativeApi, String content) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            JsonStreamWriter json = new JsonStreamWriter(out);
+            json.beginObject();
+            if (nativeApi) {
+                json.name("model").value("stub");
+                json.name("message").beginObject()
+                        .name("role").value("assistant")
+                        .name("content").value(content)
+                        .endObject();
+                json.name("done").value(true);
+            } else {
+                json.name("id").value("stub");
+                json.name("object").value("chat.completion");
+                json.name("choices").beginArray().beginObject()
+                        .name("index").value(0)
+                        .name("message").beginObject()
+                        .name("role").value("assistant")
+                        .name("content").value(content)
+                        .endObject()
+                        .name("finish_reason").value("stop")
+                        .endObject().endArray();
+            }
+            json.endObject();
+            json.flush();
+        }
+    }
+
+    private String editList(String text) {
+        if (behavior != Behavior.TYPOS) {
+            return "[]";
+        }
+        JSONArray edits = new JSONArray();
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            String word = matcher.group();
+            String fix = TYPO_FIXES.get(word.toLowerCase(Locale.ROOT));
+            if (fix != null) {
+                if (Character.isUpperCase(word.charAt(0))) {
+                    fix = Character.toUpperCase(fix.charAt(0)) + fix.substring(1);
+                }
+                edits.put(new JSONObject().put("find", word).put("replace", fix));
+            }
+        }
+        return edits.toString();
+    }
+
+    private String rewrite(String text) {
+        switch (behavior) {
+            case TYPOS:
+                Matcher matcher = WORD.matcher(text);
+                StringBuffer sb = new StringBuffer();
+                while (matcher.find()) {
+                    String word = matcher.group();
+                    String fix = TYPO_FIXES.get(word.toLowerCase(Locale.ROOT));
+                    if (fix != null && Character.isUpperCase(word.charAt(0))) {
+                        fix = Character.toUpperCase(fix.charAt(0)) + fix.substring(1);
+                    }
+                    matcher.appendReplacement(sb, Matcher.quoteReplacement(fix != null ? fix : word));
+                }
+                matcher.appendTail(sb);
+                return sb.toString();
+            case DROP_PLACEHOLDERS:
+                // Drops roughly half of the placeholders, like a model that "tidies" them away
+                Matcher placeholders = PLACEHOLDER.matcher(text);
+                StringBuffer kept = new StringBuffer();
+                while (placeholders.find()) {
+                    boolean drop = ThreadLocalRandom.current().nextBoolean();
+                    placeholders.appendReplacement(kept, drop ? "" : Matcher.quoteReplacement(placeholders.group()));
+                }
+                placeholders.appendTail(kept);
+                return kept.toString();
+            case IDENTITY:
+            default:
+                return text;
+        }
+    }
+
+    private double sampleLatencyMillis() {
+        int colon = latency.indexOf(':');
+        String kind = colon == -1 ? latency : latency.substring(0, colon);
+        String spec = colon == -1 ? "0" : latency.substring(colon + 1);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case "fixed":
+                return Double.parseDouble(spec);
+            case "uniform": {
+                String[] range = spec.split("-");
+                double min = Double.parseDouble(range[0]);
+                double max = Double.parseDouble(range[1]);
+                return min + random.nextDouble() * (max - min);
+            }
+            case "lognormal": {
+                String[] params = spec.split(",");
+                double median = Double.parseDouble(params[0]);
+                double sigma = Double.parseDouble(params[1]);
+                return median * Math.exp(sigma * random.nextGaussian());
+            }
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + latency);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package Service;
+
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTR;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTString;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTStyle;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTStyles;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-document skip/process decision for every style, resolved once from the styles
+ * part. A style is skipped when its ID or display name matches a skip entry
+ * (case-insensitively), or when any style it is basedOn is skipped. Paragraphs then
+ * need one map lookup for their own style and one per run style.
+ */
+class StyleClassifier {
+
+    private final Set<String> skipKeys;
+    private final Map<String, Boolean> decisions = new HashMap<>();
+
+    /**
+     * @param styles    the document's styles part, or null if it has none
+     * @param skipNames style IDs or names to skip, any case
+     */
+    StyleClassifier(CTStyles styles, Collection<String> skipNames) {
+        skipKeys = new HashSet<>();
+        for (String name : skipNames) {
+            skipKeys.add(normalize(name));
+        }
+        if (styles == null) {
+            return;
+        }
+
+        Map<String, CTStyle> byId = new HashMap<>();
+        for (CTStyle style : styles.getStyleList()) {
+            if (style.getStyleId() != null) {
+                byId.put(style.getStyleId(), style);
+            }
+        }
+        for (String styleId : byId.keySet()) {
+            resolve(styleId, byId, new HashSet<>());
+        }
+    }
+
+    private boolean resolve(String styleId, Map<String, CTStyle> byId, Set<String> visiting) {
+        Boolean known = decisions.get(styleId);
+        if (known != null) {
+            return known;
+        }
+        CTStyle style = byId.get(styleId);
+        if (style == null || !visiting.add(styleId)) {
+            // Dangling or circular basedOn: decide on the ID alone
+            return skipKeys.contains(normalize(styleId));
+        }
+
+        boolean skip = skipKeys.contains(normalize(styleId))
+                || (style.getName() != null && skipKeys.contains(normalize(style.getName().getVal())))
+                || (style.getBasedOn() != null && resolve(style.getBasedOn().getVal(), byId, visiting));
+        decisions.put(styleId, skip);
+        return skip;
+    }
+
+    boolean isStyleToSkip(String styleId) {
+        if (styleId == null) {
+            return false;
+        }
+        // IDs missing from the styles part still match the skip list directly
+        return decisions.computeIfAbsent(styleId, id -> skipKeys.contains(normalize(id)));
+    }
+
+    boolean isParagraphToSkip(XWPFParagraph paragraph) {
+        if (isStyleToSkip(paragraph.getStyleID())) {
+            return true;
+        }
+        for (XWPFRun run : paragraph.getRuns()) {
+            CTR ctr = run.getCTR();
+            if (ctr != null && ctr.isSetRPr()) {
+                CTString rStyle = ctr.getRPr().getRStyle();
+                if (rStyle != null && isStyleToSkip(rStyle.getVal())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+}
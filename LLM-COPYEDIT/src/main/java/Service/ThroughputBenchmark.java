@@ -0,0 +1,123 @@
+package Service;
+
+import org.apache.poi.xwpf.usermodel.VerticalAlign;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * End-to-end throughput benchmark: generates a DOCX corpus, starts a
+ * {@link StubLlmServer} and runs {@link SpellCheckProcessor#processFolder()} over it.
+ *
+ * Configured through system properties:
+ *   bench.documents    number of generated documents, default 20
+ *   bench.paragraphs   body paragraphs per document, default 40
+ *   bench.seed         corpus random seed, default 42
+ * plus any stub.* property of the stub server and spellcheck.* property of the processor.
+ */
+public class ThroughputBenchmark {
+
+    private static final String[] WORDS = {
+            "the", "sample", "was", "analysed", "using", "a", "standard", "protocol", "and", "results",
+            "were", "compared", "with", "previous", "studies", "in", "which", "temperature", "increased",
+            "significantly", "during", "experiment", "patients", "received", "treatment", "for", "weeks",
+            "data", "suggest", "that", "effect", "is", "consistent", "across", "groups", "of", "participants"
+    };
+    private static final String[] TYPOS = { "teh", "recieved", "seperate", "occured", "untill", "wich" };
+
+    public static void main(String[] args) throws Exception {
+        int documents = Integer.getInteger("bench.documents", 20);
+        int paragraphs = Integer.getInteger("bench.paragraphs", 40);
+        long seed = Long.getLong("bench.seed", 42L);
+
+        Path workDir = Files.createTempDirectory("copyedit-bench");
+        Path input = Files.createDirectories(workDir.resolve("before"));
+        Path output = Files.createDirectories(workDir.resolve("after"));
+
+        StubLlmServer stub = new StubLlmServer(0,
+                System.getProperty("stub.latency", "lognormal:40,0.5"),
+                Double.parseDouble(System.getProperty("stub.msPerChar", "0.05")),
+                Double.parseDouble(System.getProperty("stub.errorRate", "0")),
+                StubLlmServer.Behavior.valueOf(System.getProperty("stub.behavior", "typos").trim()
+                        .toUpperCase(Locale.ROOT).replace('-', '_')),
+                Integer.getInteger("stub.threads", 8));
+        stub.start();
+
+        try {
+            // SpellCheckProcessor reads its configuration when the class is first used
+            System.setProperty("spellcheck.api.url", "http://127.0.0.1:" + stub.getPort());
+            System.setProperty("spellcheck.input", input.toString());
+            System.setProperty("spellcheck.output", output.toString());
+
+            Random random = new Random(seed);
+            for (int d = 0; d < documents; d++) {
+                writeDocument(input.resolve(String.format(Locale.ROOT, "bench_%04d.docx", d)), paragraphs, random);
+            }
+            System.out.println("Generated " + documents + " documents x " + paragraphs + " paragraphs in " + input);
+
+            long start = System.nanoTime();
+            SpellCheckProcessor.processFolder();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            LatencyRecorder.Snapshot latency = SpellCheckProcessor.llmLatencies().snapshot();
+            long totalParagraphs = (long) documents * paragraphs;
+
+            System.out.println();
+            System.out.println("=== Throughput ===");
+            System.out.printf(Locale.ROOT, "Wall time:       %.2f s%n", seconds);
+            System.out.printf(Locale.ROOT, "Documents/min:   %.1f%n", documents / seconds * 60);
+            System.out.printf(Locale.ROOT, "Paragraphs/sec:  %.1f%n", totalParagraphs / seconds);
+            System.out.printf(Locale.ROOT, "LLM calls:       %d%n", latency.getCount());
+            System.out.println("LLM latency:     " + latency.summary());
+            System.out.println("Output folder:   " + output);
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static void writeDocument(Path file, int paragraphs, Random random) throws IOException {
+        try (XWPFDocument doc = new XWPFDocument(); OutputStream out = Files.newOutputStream(file)) {
+            for (int p = 0; p < paragraphs; p++) {
+                XWPFParagraph paragraph = doc.createParagraph();
+                int sentences = 1 + random.nextInt(4);
+                for (int s = 0; s < sentences; s++) {
+                    XWPFRun run = paragraph.createRun();
+                    run.setText(sentence(random), 0);
+
+                    // Sprinkle in footnote-style superscripts and chemical subscripts
+                    if (random.nextInt(5) == 0) {
+                        XWPFRun sup = paragraph.createRun();
+                        sup.setText(Integer.toString(1 + random.nextInt(60)), 0);
+                        sup.setSubscript(VerticalAlign.SUPERSCRIPT);
+                    } else if (random.nextInt(8) == 0) {
+                        paragraph.createRun().setText(" in H₂O", 0);
+                    }
+                    paragraph.createRun().setText(" ", 0);
+                }
+            }
+            doc.write(out);
+        }
+    }
+
+    private static String sentence(Random random) {
+        int length = 8 + random.nextInt(18);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            String word = random.nextInt(15) == 0 ? TYPOS[random.nextInt(TYPOS.length)] : WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            } else {
+                sb.append(' ');
+            }
+            sb.append(word);
+        }
+        return sb.append('.').toString();
+    }
+}
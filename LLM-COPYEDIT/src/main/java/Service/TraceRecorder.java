@@ -0,0 +1,163 @@
+package Service;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in span tracing in the trace-event JSON format, for chrome://tracing or
+ * Perfetto. Set spellcheck.trace to the output file to turn it on.
+ *
+ * Every span is a complete ("X") event on the thread that ran it, so a worker's
+ * lane shows document, paragraph, LLM call and HTTP phases nested in each other.
+ * Time a document spends in the scheduler queue overlaps other work, so it is an
+ * async event on its own track. Events are written as they happen, which keeps
+ * memory flat on long runs; a shutdown hook finishes the file if the run is cut short.
+ */
+final class TraceRecorder {
+
+    private static final TraceRecorder INSTANCE = fromSystemProperties();
+
+    private final String path;
+    private final Writer out;
+    private final long epoch = System.nanoTime();
+    private final long pid = ProcessHandle.current().pid();
+    private final Set<Long> namedThreads = ConcurrentHashMap.newKeySet();
+    private final AtomicLong asyncIds = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private boolean first = true;
+    private boolean closed;
+
+    private TraceRecorder(String path, Writer out) {
+        this.path = path;
+        this.out = out;
+    }
+
+    private static TraceRecorder fromSystemProperties() {
+        String path = System.getProperty("spellcheck.trace", "").trim();
+        if (path.isEmpty()) {
+            return new TraceRecorder(null, null);
+        }
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+            writer.write('[');
+            TraceRecorder recorder = new TraceRecorder(path, writer);
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            return recorder;
+        } catch (IOException e) {
+            System.err.println("Tracing disabled, cannot write " + path + ": " + e.getMessage());
+            return new TraceRecorder(null, null);
+        }
+    }
+
+    static TraceRecorder get() {
+        return INSTANCE;
+    }
+
+    boolean isEnabled() {
+        return out != null;
+    }
+
+    /**
+     * Start time for a span; free when tracing is off
+     */
+    long start() {
+        return out == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Record a span from startNanos until now on the current thread
+     *
+     * @param args alternating argument names and values
+     */
+    void complete(String name, String category, long startNanos, Object... args) {
+        if (out != null) {
+            complete(name, category, startNanos, System.nanoTime(), args);
+        }
+    }
+
+    void complete(String name, String category, long startNanos, long endNanos, Object... args) {
+        if (out == null) {
+            return;
+        }
+        JSONObject event = event(name, category, "X", startNanos, args)
+                .put("dur", Math.max(0, endNanos - startNanos) / 1000.0);
+        write(event);
+    }
+
+    /**
+     * Record a span that may overlap others, such as time spent waiting in a queue
+     */
+    void async(String name, String category, long startNanos, long endNanos, Object... args) {
+        if (out == null) {
+            return;
+        }
+        long id = asyncIds.incrementAndGet();
+        write(event(name, category, "b", startNanos, args).put("id", id));
+        write(event(name, category, "e", endNanos).put("id", id));
+    }
+
+    private JSONObject event(String name, String category, String phase, long nanos, Object... args) {
+        Thread thread = Thread.currentThread();
+        if (namedThreads.add(thread.getId())) {
+            write(new JSONObject().put("name", "thread_name").put("ph", "M").put("pid", pid)
+                    .put("tid", thread.getId()).put("args", new JSONObject().put("name", thread.getName())));
+        }
+        JSONObject event = new JSONObject()
+                .put("name", name)
+                .put("cat", category)
+                .put("ph", phase)
+                .put("ts", (nanos - epoch) / 1000.0)
+                .put("pid", pid)
+                .put("tid", thread.getId());
+        if (args.length > 0) {
+            JSONObject values = new JSONObject();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                values.put(String.valueOf(args[i]), args[i + 1]);
+            }
+            event.put("args", values);
+        }
+        return event;
+    }
+
+    private synchronized void write(JSONObject event) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!first) {
+                out.write(",\n");
+            }
+            first = false;
+            out.write(event.toString());
+            events.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Trace write failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finish the file; later events are dropped
+     */
+    synchronized void close() {
+        if (out == null || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write("]\n");
+            out.close();
+            System.out.println("Trace: " + events.get() + " events written to " + path);
+        } catch (IOException e) {
+            System.err.println("Could not finish trace " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package Service;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.*;
+
+/**
+ * Rewrites a zip package (DOCX) while copying every untouched entry as its raw
+ * compressed bytes. Only the entries given a {@link PartRewriter} are inflated and
+ * deflated again, so large images and embedded objects cost a plain byte copy.
+ *
+ * ZIP64 archives, encryption and split archives are rejected with a
+ * {@link ZipException}; callers fall back to a regular write in that case.
+ */
+final class ZipRepackager implements Closeable {
+
+    interface PartRewriter {
+        /**
+         * @param original the entry's current uncompressed content
+         */
+        void rewrite(InputStream original, OutputStream out) throws IOException;
+    }
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Source source;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private byte[] archiveComment = new byte[0];
+
+    ZipRepackager(byte[] data) throws IOException {
+        this(new ByteArraySource(data));
+    }
+
+    ZipRepackager(Path file) throws IOException {
+        this(new FileSource(FileChannel.open(file, StandardOpenOption.READ)));
+    }
+
+    private ZipRepackager(Source source) throws IOException {
+        this.source = source;
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    boolean hasEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Opens the uncompressed content of an entry.
+     */
+    InputStream openEntry(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+        long dataStart = dataStart(entry);
+        if (entry.method == ZipEntry.STORED) {
+            return new BufferedInputStream(new SourceInputStream(source, dataStart, entry.compressedSize, false));
+        }
+        if (entry.method == ZipEntry.DEFLATED) {
+            // A nowrap Inflater may need one byte past the end of the data, as in ZipFile
+            return new InflaterInputStream(new SourceInputStream(source, dataStart, entry.compressedSize, true),
+                    new Inflater(true), COPY_BUFFER_SIZE);
+        }
+        throw new ZipException("Unsupported compression method " + entry.method + " for " + name);
+    }
+
+    /**
+     * Checks up front what writeTo would otherwise only find out halfway: every local
+     * header is where the central directory says, and the entries to be rewritten use
+     * a compression method openEntry can read.
+     */
+    void checkRepackable(Set<String> rewritten) throws IOException {
+        for (Entry entry : entries.values()) {
+            dataStart(entry);
+            if (rewritten.contains(entry.name) && entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED) {
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+            }
+        }
+    }
+
+    /**
+     * Writes the package to out, running the rewriters for their entries and
+     * copying every other entry raw.
+     */
+    void writeTo(OutputStream target, Map<String, PartRewriter> rewriters) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(target, COPY_BUFFER_SIZE));
+        List<byte[]> centralHeaders = new ArrayList<>(entries.size());
+
+        for (Entry entry : entries.values()) {
+            long offset = out.count;
+            requireZip32(offset);
+            PartRewriter rewriter = rewriters.get(entry.name);
+            if (rewriter == null) {
+                copyRaw(entry, out);
+                centralHeaders.add(entry.centralHeaderWithOffset(offset));
+            } else {
+                centralHeaders.add(writeRewritten(entry, rewriter, out, offset));
+            }
+        }
+
+        long centralStart = out.count;
+        for (byte[] header : centralHeaders) {
+            out.write(header);
+        }
+        long centralSize = out.count - centralStart;
+        requireZip32(centralStart + centralSize);
+
+        ByteBuffer end = littleEndian(END_OF_CENTRAL_DIR_SIZE);
+        end.putInt(END_OF_CENTRAL_DIR_SIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) centralHeaders.size());
+        end.putShort((short) centralHeaders.size());
+        end.putInt((int) centralSize);
+        end.putInt((int) centralStart);
+        end.putShort((short) archiveComment.length);
+        out.write(end.array());
+        out.write(archiveComment);
+        out.flush();
+    }
+
+    private void copyRaw(Entry entry, OutputStream out) throws IOException {
+        long length = dataStart(entry) - entry.localHeaderOffset + entry.compressedSize;
+        if ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            long descriptor = entry.localHeaderOffset + length;
+            length += readInt(descriptor) == DATA_DESCRIPTOR_SIG ? 16 : 12;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length))];
+        long position = entry.localHeaderOffset;
+        long remaining = length;
+        while (remaining > 0) {
+            int chunk = (int) Math.min(buffer.length, remaining);
+            source.readFully(position, buffer, 0, chunk);
+            out.write(buffer, 0, chunk);
+            position += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    private byte[] writeRewritten(Entry entry, PartRewriter rewriter, CountingOutputStream out, long offset)
+            throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+
+        // Sizes and CRC are unknown until the data is written, so they follow in a data descriptor
+        ByteBuffer local = littleEndian(LOCAL_HEADER_SIZE);
+        local.putInt(LOCAL_HEADER_SIG);
+        local.putShort((short) 20);
+        local.putShort((short) flags);
+        local.putShort((short) ZipEntry.DEFLATED);
+        local.putShort((short) entry.modTime);
+        local.putShort((short) entry.modDate);
+        local.putInt(0);
+        local.putInt(0);
+        local.putInt(0);
+        local.putShort((short) name.length);
+        local.putShort((short) 0);
+        out.write(local.array());
+        out.write(name);
+
+        long dataStart = out.count;
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CountingOutputStream uncompressed;
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, COPY_BUFFER_SIZE);
+            uncompressed = new CountingOutputStream(new CheckedOutputStream(deflating, crc));
+            try (InputStream original = openEntry(entry.name)) {
+                rewriter.rewrite(original, uncompressed);
+            }
+            uncompressed.flush();
+            deflating.finish();
+        } finally {
+            deflater.end();
+        }
+        long compressedSize = out.count - dataStart;
+        requireZip32(compressedSize);
+        requireZip32(uncompressed.count);
+
+        ByteBuffer descriptor = littleEndian(16);
+        descriptor.putInt(DATA_DESCRIPTOR_SIG);
+        descriptor.putInt((int) crc.getValue());
+        descriptor.putInt((int) compressedSize);
+        descriptor.putInt((int) uncompressed.count);
+        out.write(descriptor.array());
+
+        ByteBuffer central = littleEndian(CENTRAL_HEADER_SIZE + name.length);
+        central.putInt(CENTRAL_HEADER_SIG);
+        central.putShort((short) entry.versionMadeBy);
+        central.putShort((short) 20);
+        central.putShort((short) flags);
+        central.putShort((short) ZipEntry.DEFLATED);
+        central.putShort((short) entry.modTime);
+        central.putShort((short) entry.modDate);
+        central.putInt((int) crc.getValue());
+        central.putInt((int) compressedSize);
+        central.putInt((int) uncompressed.count);
+        central.putShort((short) name.length);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putInt(entry.externalAttributes);
+        central.putInt((int) offset);
+        central.put(name);
+        return central.array();
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = source.size();
+        int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIR_SIZE + 0xFFFF);
+        byte[] tail = new byte[tailLength];
+        source.readFully(size - tailLength, tail, 0, tailLength);
+        ByteBuffer tailBuffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+        int endOffset = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+            if (tailBuffer.getInt(i) == END_OF_CENTRAL_DIR_SIG) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int disk = Short.toUnsignedInt(tailBuffer.getShort(endOffset + 4));
+        int entryCount = Short.toUnsignedInt(tailBuffer.getShort(endOffset + 10));
+        long centralSize = Integer.toUnsignedLong(tailBuffer.getInt(endOffset + 12));
+        long centralOffset = Integer.toUnsignedLong(tailBuffer.getInt(endOffset + 16));
+        int commentLength = Short.toUnsignedInt(tailBuffer.getShort(endOffset + 20));
+        if (disk != 0) {
+            throw new ZipException("Split archives are not supported");
+        }
+        if (entryCount == 0xFFFF || centralSize == 0xFFFFFFFFL || centralOffset == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 archives are not supported");
+        }
+        archiveComment = new byte[Math.min(commentLength, tailLength - endOffset - END_OF_CENTRAL_DIR_SIZE)];
+        System.arraycopy(tail, endOffset + END_OF_CENTRAL_DIR_SIZE, archiveComment, 0, archiveComment.length);
+
+        byte[] central = new byte[(int) centralSize];
+        source.readFully(centralOffset, central, 0, central.length);
+        ByteBuffer buffer = ByteBuffer.wrap(central).order(ByteOrder.LITTLE_ENDIAN);
+
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (buffer.getInt(position) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Bad central directory header");
+            }
+            int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+            int entryCommentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+            int headerLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + entryCommentLength;
+
+            Entry entry = new Entry();
+            entry.centralHeader = new byte[headerLength];
+            System.arraycopy(central, position, entry.centralHeader, 0, headerLength);
+            entry.versionMadeBy = Short.toUnsignedInt(buffer.getShort(position + 4));
+            entry.flags = Short.toUnsignedInt(buffer.getShort(position + 8));
+            entry.method = Short.toUnsignedInt(buffer.getShort(position + 10));
+            entry.modTime = Short.toUnsignedInt(buffer.getShort(position + 12));
+            entry.modDate = Short.toUnsignedInt(buffer.getShort(position + 14));
+            entry.compressedSize = Integer.toUnsignedLong(buffer.getInt(position + 20));
+            long uncompressedSize = Integer.toUnsignedLong(buffer.getInt(position + 24));
+            entry.externalAttributes = buffer.getInt(position + 38);
+            entry.localHeaderOffset = Integer.toUnsignedLong(buffer.getInt(position + 42));
+            entry.name = new String(central, position + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+
+            if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException("Encrypted entries are not supported: " + entry.name);
+            }
+            if (entry.compressedSize == 0xFFFFFFFFL || uncompressedSize == 0xFFFFFFFFL
+                    || entry.localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 entries are not supported: " + entry.name);
+            }
+
+            entries.put(entry.name, entry);
+            position += headerLength;
+        }
+    }
+
+    // The local header's name and extra lengths can differ from the central directory's
+    private long dataStart(Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        source.readFully(entry.localHeaderOffset, header, 0, LOCAL_HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != LOCAL_HEADER_SIG) {
+            throw new ZipException("Bad local header for " + entry.name);
+        }
+        int nameLength = Short.toUnsignedInt(buffer.getShort(26));
+        int extraLength = Short.toUnsignedInt(buffer.getShort(28));
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private int readInt(long position) throws IOException {
+        byte[] bytes = new byte[4];
+        source.readFully(position, bytes, 0, 4);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static void requireZip32(long value) throws ZipException {
+        if (value >= 0xFFFFFFFFL) {
+            throw new ZipException("Output would need ZIP64");
+        }
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private static final class Entry {
+        String name;
+        byte[] centralHeader;
+        int versionMadeBy;
+        int flags;
+        int method;
+        int modTime;
+        int modDate;
+        long compressedSize;
+        int externalAttributes;
+        long localHeaderOffset;
+
+        byte[] centralHeaderWithOffset(long offset) {
+            byte[] copy = centralHeader.clone();
+            ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) offset);
+            return copy;
+        }
+    }
+
+    private interface Source extends Closeable {
+        long size() throws IOException;
+
+        void readFully(long position, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final class ByteArraySource implements Source {
+        private final byte[] data;
+
+        ByteArraySource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < 0 || position + length > data.length) {
+                throw new EOFException("Read past end of archive");
+            }
+            System.arraycopy(data, (int) position, buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class FileSource implements Source {
+        private final FileChannel channel;
+
+        FileSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position() - offset) < 0) {
+                    throw new EOFException("Read past end of archive");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class SourceInputStream extends InputStream {
+        private final Source source;
+        private long position;
+        private long remaining;
+        private boolean padByte;
+
+        SourceInputStream(Source source, long position, long length, boolean padByte) {
+            this.source = source;
+            this.position = position;
+            this.remaining = length;
+            this.padByte = padByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                if (padByte) {
+                    padByte = false;
+                    buffer[offset] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            int chunk = (int) Math.min(length, remaining);
+            source.readFully(position, buffer, offset, chunk);
+            position += chunk;
+            remaining -= chunk;
+            return chunk;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}